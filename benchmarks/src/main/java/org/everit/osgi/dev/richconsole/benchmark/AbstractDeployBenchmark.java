@@ -0,0 +1,96 @@
+/**
+ * This file is part of Everit - OSGi Rich Console.
+ *
+ * Everit - OSGi Rich Console is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit - OSGi Rich Console is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit - OSGi Rich Console.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.dev.richconsole.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.everit.osgi.dev.richconsole.internal.upgrade.EmbeddedUpgradeService;
+import org.everit.osgi.dev.richconsole.internal.upgrade.UpgradeServiceImpl;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Boots an embedded framework, generates the synthetic bundles and deploys them once, so every benchmark starts from
+ * a framework where the bundles are installed and started.
+ */
+@State(Scope.Benchmark)
+public abstract class AbstractDeployBenchmark {
+
+    private static final int ENTRIES_PER_BUNDLE = 50;
+
+    @Param({ "10", "100" })
+    public int bundleCount;
+
+    protected List<File> bundleFiles;
+
+    protected List<URI> bundleLocations;
+
+    @Param({ "1", "5" })
+    public int dependencyDepth;
+
+    private EmbeddedUpgradeService embeddedUpgradeService;
+
+    protected SyntheticBundleGenerator generator;
+
+    @Param({ "JAR", "DIRECTORY" })
+    public SyntheticBundleGenerator.Layout layout;
+
+    private int revision = 0;
+
+    protected UpgradeServiceImpl upgradeService;
+
+    /**
+     * Writes the bundles with a new revision, so their content differs from the deployed one.
+     */
+    protected void modifyBundles() throws IOException {
+        revision++;
+        generator.generate(revision);
+    }
+
+    @Setup
+    public void setUpFramework() throws Exception {
+        embeddedUpgradeService = new EmbeddedUpgradeService();
+        upgradeService = embeddedUpgradeService.getUpgradeService();
+
+        File bundleDirectory = new File(embeddedUpgradeService.getTempDirectory(), "bundles");
+        generator = new SyntheticBundleGenerator(bundleDirectory, layout, bundleCount, dependencyDepth,
+                ENTRIES_PER_BUNDLE);
+        bundleFiles = generator.generate(revision);
+        bundleLocations = new ArrayList<URI>(bundleFiles.size());
+        for (File bundleFile : bundleFiles) {
+            bundleLocations.add(toBundleLocation(bundleFile));
+        }
+        upgradeService.deployBundles(bundleFiles);
+    }
+
+    @TearDown
+    public void tearDownFramework() throws Exception {
+        embeddedUpgradeService.stop();
+    }
+
+    private URI toBundleLocation(final File bundleFile) throws URISyntaxException {
+        return new URI("reference:" + bundleFile.toURI().toString());
+    }
+}
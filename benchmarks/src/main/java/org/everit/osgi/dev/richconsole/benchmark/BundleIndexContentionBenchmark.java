@@ -0,0 +1,95 @@
+/**
+ * This file is part of Everit - OSGi Rich Console.
+ *
+ * Everit - OSGi Rich Console is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit - OSGi Rich Console is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit - OSGi Rich Console.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.dev.richconsole.benchmark;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.everit.osgi.dev.richconsole.internal.upgrade.BundleIndex;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Looks up bundles in the index of the upgrade service while another thread keeps installing and uninstalling bundles,
+ * as the bundle tracker does during a large redeployment.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class BundleIndexContentionBenchmark {
+
+    private static final String BUNDLE_VERSION = "1.0.0";
+
+    @Param({ "100", "1000" })
+    public int bundleCount;
+
+    private BundleIndex bundleIndex;
+
+    private long nextBundleId;
+
+    private String[] symbolicNames;
+
+    private static String location(final long bundleId) {
+        return "reference:file:/bench/bundle" + bundleId + "/target/classes/";
+    }
+
+    @Benchmark
+    @Group("indexContention")
+    @GroupThreads(1)
+    public void bundleEvents() {
+        long bundleId = nextBundleId++;
+        bundleIndex.add(bundleId, symbolicNames[(int) (bundleId % bundleCount)], BUNDLE_VERSION, location(bundleId));
+        bundleIndex.remove(bundleId - bundleCount);
+    }
+
+    @Benchmark
+    @Group("indexContention")
+    @GroupThreads(3)
+    public long lookupBySymbolicName() {
+        String symbolicName = symbolicNames[ThreadLocalRandom.current().nextInt(bundleCount)];
+        long[] bundleIds = bundleIndex.getBundleIdsBySymbolicNameAndVersion(symbolicName, BUNDLE_VERSION);
+        if (bundleIds.length > 0) {
+            return bundleIds[0];
+        }
+        return bundleIndex.getBundleIdsBySymbolicName(symbolicName).length;
+    }
+
+    @Setup
+    public void setUp() {
+        bundleIndex = new BundleIndex();
+        symbolicNames = new String[bundleCount];
+        for (int i = 0; i < bundleCount; i++) {
+            symbolicNames[i] = "bench.bundle" + i;
+            bundleIndex.add(i, symbolicNames[i], BUNDLE_VERSION, location(i));
+        }
+        nextBundleId = bundleCount;
+    }
+}
@@ -0,0 +1,192 @@
+/**
+ * This file is part of Everit - OSGi Rich Console.
+ *
+ * Everit - OSGi Rich Console is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit - OSGi Rich Console is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit - OSGi Rich Console.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.dev.richconsole.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.everit.osgi.dev.richconsole.RichConsoleConstants;
+import org.everit.osgi.dev.richconsole.internal.upgrade.EmbeddedUpgradeService;
+import org.everit.osgi.dev.richconsole.internal.upgrade.TCPServer;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the throughput of the selector based server as the number of concurrently connected clients grows. Each
+ * client owns a slice of the generated bundles and, in every round, opens a connection, sends a deployBundle command
+ * for each bundle of its slice and closes its output, so the server runs one upgrade process per client. The bundles
+ * get a new revision before every round, so each deployment updates an installed bundle. The "deployments" counter of
+ * the results is the number of deployed bundles per second summed over every client.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ConcurrentClientsBenchmark {
+
+    /**
+     * A client that deploys its slice of bundles on its own connection.
+     */
+    private static class Client implements Callable<Integer> {
+
+        private final ByteBuffer commands;
+
+        private final int deploymentCount;
+
+        private final ByteBuffer response = ByteBuffer.allocate(RESPONSE_BUFFER_SIZE);
+
+        private final InetSocketAddress serverAddress;
+
+        public Client(final InetSocketAddress serverAddress, final List<File> bundleFiles) {
+            this.serverAddress = serverAddress;
+            StringBuilder sb = new StringBuilder();
+            for (File bundleFile : bundleFiles) {
+                sb.append(RichConsoleConstants.TCPCOMMAND_DEPLOY_BUNDLE).append(" reference:")
+                        .append(bundleFile.toURI().toString()).append("@start\n");
+            }
+            commands = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+            deploymentCount = bundleFiles.size();
+        }
+
+        /**
+         * Sends the deployments and waits until the server finishes the upgrade process and closes the connection.
+         */
+        @Override
+        public Integer call() throws IOException {
+            SocketChannel channel = SocketChannel.open(serverAddress);
+            try {
+                commands.rewind();
+                while (commands.hasRemaining()) {
+                    channel.write(commands);
+                }
+                channel.shutdownOutput();
+                response.clear();
+                while (channel.read(response) >= 0) {
+                    response.clear();
+                }
+            } finally {
+                channel.close();
+            }
+            return deploymentCount;
+        }
+    }
+
+    /**
+     * Counts the deployed bundles, so the throughput is reported per bundle and not per round.
+     */
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class DeploymentCounter {
+
+        public long deployments;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            deployments = 0;
+        }
+    }
+
+    private static final int BUNDLES_PER_CLIENT = 4;
+
+    private static final int ENTRIES_PER_BUNDLE = 10;
+
+    private static final int RESPONSE_BUFFER_SIZE = 256;
+
+    private ExecutorService clientExecutor;
+
+    @Param({ "1", "4", "16", "64" })
+    public int clientCount;
+
+    private List<Client> clients;
+
+    private EmbeddedUpgradeService embeddedUpgradeService;
+
+    private SyntheticBundleGenerator generator;
+
+    private int revision = 0;
+
+    private TCPServer server;
+
+    @Benchmark
+    public int concurrentDeployments(final DeploymentCounter counter) throws Exception {
+        int deployedBundles = 0;
+        for (Future<Integer> future : clientExecutor.invokeAll(clients)) {
+            deployedBundles += future.get();
+        }
+        counter.deployments += deployedBundles;
+        return deployedBundles;
+    }
+
+    @Setup(Level.Invocation)
+    public void nextRevision() throws IOException {
+        revision++;
+        generator.generate(revision);
+    }
+
+    @Setup
+    public void setUp() throws Exception {
+        embeddedUpgradeService = new EmbeddedUpgradeService();
+
+        File bundleDirectory = new File(embeddedUpgradeService.getTempDirectory(), "bundles");
+        generator = new SyntheticBundleGenerator(bundleDirectory, SyntheticBundleGenerator.Layout.JAR,
+                clientCount * BUNDLES_PER_CLIENT, 1, ENTRIES_PER_BUNDLE);
+        List<File> bundleFiles = generator.generate(revision);
+        embeddedUpgradeService.getUpgradeService().deployBundles(bundleFiles);
+
+        server = new TCPServer(embeddedUpgradeService.getUpgradeService(), 0);
+        InetSocketAddress serverAddress = new InetSocketAddress(InetAddress.getLocalHost(), server.getLocalPort());
+        clients = new ArrayList<Client>(clientCount);
+        for (int i = 0; i < clientCount; i++) {
+            int fromIndex = i * BUNDLES_PER_CLIENT;
+            clients.add(new Client(serverAddress, bundleFiles.subList(fromIndex, fromIndex + BUNDLES_PER_CLIENT)));
+        }
+        clientExecutor = Executors.newFixedThreadPool(clientCount);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        clientExecutor.shutdownNow();
+        server.close();
+        embeddedUpgradeService.stop();
+    }
+}
@@ -0,0 +1,88 @@
+/**
+ * This file is part of Everit - OSGi Rich Console.
+ *
+ * Everit - OSGi Rich Console is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit - OSGi Rich Console is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit - OSGi Rich Console.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.dev.richconsole.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarFile;
+
+import org.everit.osgi.dev.richconsole.internal.BundleData;
+import org.everit.osgi.dev.richconsole.internal.BundleUtil;
+import org.everit.osgi.dev.richconsole.internal.ZipManifestReader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reads the symbolic name and the version of a jar bundle with many entries by opening it as a {@link JarFile} and by
+ * reading only the manifest entry with {@link ZipManifestReader}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ManifestReadBenchmark {
+
+    @Param({ "1000", "10000" })
+    public int entriesPerBundle;
+
+    private File jarFile;
+
+    private File tempDirectory;
+
+    @Benchmark
+    public BundleData jarFile() throws IOException {
+        JarFile jar = new JarFile(jarFile);
+        try {
+            return BundleUtil.readBundleDataFromManifest(jarFile, jar.getManifest());
+        } finally {
+            jar.close();
+        }
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        tempDirectory = File.createTempFile("richconsole-bench", "");
+        tempDirectory.delete();
+        SyntheticBundleGenerator generator = new SyntheticBundleGenerator(tempDirectory,
+                SyntheticBundleGenerator.Layout.JAR, 1, 1, entriesPerBundle);
+        jarFile = generator.generate(0).get(0);
+    }
+
+    @TearDown
+    public void tearDown() {
+        jarFile.delete();
+        tempDirectory.delete();
+    }
+
+    @Benchmark
+    public BundleData zipManifestReader() throws IOException {
+        return ZipManifestReader.readBundleData(jarFile);
+    }
+}
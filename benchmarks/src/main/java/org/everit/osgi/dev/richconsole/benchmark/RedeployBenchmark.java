@@ -0,0 +1,72 @@
+/**
+ * This file is part of Everit - OSGi Rich Console.
+ *
+ * Everit - OSGi Rich Console is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit - OSGi Rich Console is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit - OSGi Rich Console.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.dev.richconsole.benchmark;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+import org.everit.osgi.dev.richconsole.internal.upgrade.UpgradeProcess;
+import org.everit.osgi.dev.richconsole.internal.upgrade.UpgradeResult;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Redeploys every synthetic bundle after their content changed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RedeployBenchmark extends AbstractDeployBenchmark {
+
+    /**
+     * Deploys the bundles one by one in an upgrade process and finishes it.
+     */
+    @Benchmark
+    public UpgradeResult deployBundleAndFinish() {
+        UpgradeProcess upgradeProcess = upgradeService.newUpgradeProcess();
+        for (URI bundleLocation : bundleLocations) {
+            upgradeProcess.deployBundle(bundleLocation, true, null);
+        }
+        return upgradeProcess.finish();
+    }
+
+    /**
+     * Deploys the bundles the same way as if they were dropped on the deployer window.
+     */
+    @Benchmark
+    public UpgradeResult deployBundles() {
+        return upgradeService.deployBundles(bundleFiles);
+    }
+
+    @Setup(Level.Invocation)
+    public void setUpInvocation() throws IOException {
+        modifyBundles();
+    }
+}
@@ -0,0 +1,156 @@
+/**
+ * This file is part of Everit - OSGi Rich Console.
+ *
+ * Everit - OSGi Rich Console is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit - OSGi Rich Console is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit - OSGi Rich Console.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.dev.richconsole.benchmark;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+/**
+ * Generates bundles for the benchmarks. Bundle <i>i</i> exports the package <code>bench.p<i>i</i></code> and imports
+ * the package of bundle <i>i - 1</i> unless it is the first bundle of a dependency chain. The length of the chains is
+ * the dependency depth. Each bundle contains a configurable number of dummy entries and a revision entry that can be
+ * rewritten to change the content of the bundle.
+ */
+public class SyntheticBundleGenerator {
+
+    /**
+     * The form of the generated bundles.
+     */
+    public enum Layout {
+
+        /**
+         * Maven project directories where target/classes contains the content of the bundle.
+         */
+        DIRECTORY,
+
+        /**
+         * Jar files.
+         */
+        JAR
+    }
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final int bundleCount;
+
+    private final int dependencyDepth;
+
+    private final int entriesPerBundle;
+
+    private final Layout layout;
+
+    private final File rootDirectory;
+
+    public SyntheticBundleGenerator(final File rootDirectory, final Layout layout, final int bundleCount,
+            final int dependencyDepth, final int entriesPerBundle) {
+        this.rootDirectory = rootDirectory;
+        this.layout = layout;
+        this.bundleCount = bundleCount;
+        this.dependencyDepth = dependencyDepth;
+        this.entriesPerBundle = entriesPerBundle;
+    }
+
+    private static void writeFile(final File file, final byte[] content) throws IOException {
+        file.getParentFile().mkdirs();
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+    }
+
+    private Manifest createManifest(final int index) {
+        Manifest manifest = new Manifest();
+        Attributes attributes = manifest.getMainAttributes();
+        attributes.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        attributes.putValue("Bundle-ManifestVersion", "2");
+        attributes.putValue("Bundle-SymbolicName", "bench.bundle" + index);
+        attributes.putValue("Bundle-Version", "1.0.0");
+        attributes.putValue("Export-Package", "bench.p" + index + ";version=\"1.0.0\"");
+        if ((index % dependencyDepth) != 0) {
+            attributes.putValue("Import-Package", "bench.p" + (index - 1) + ";version=\"[1.0,2)\"");
+        }
+        return manifest;
+    }
+
+    /**
+     * Writes every bundle with the specified revision.
+     *
+     * @return The files that can be passed to the deployer: jar files or project directories.
+     */
+    public List<File> generate(final int revision) throws IOException {
+        List<File> result = new ArrayList<File>(bundleCount);
+        for (int i = 0; i < bundleCount; i++) {
+            result.add(writeBundle(i, revision));
+        }
+        return result;
+    }
+
+    private String revisionEntryName(final int index) {
+        return "bench/p" + index + "/revision.txt";
+    }
+
+    private File writeBundle(final int index, final int revision) throws IOException {
+        if (layout == Layout.JAR) {
+            File jarFile = new File(rootDirectory, "bundle" + index + ".jar");
+            jarFile.getParentFile().mkdirs();
+            JarOutputStream out = new JarOutputStream(new FileOutputStream(jarFile), createManifest(index));
+            try {
+                for (int j = 0; j < entriesPerBundle; j++) {
+                    out.putNextEntry(new JarEntry("bench/p" + index + "/Entry" + j + ".class"));
+                    out.write(("entry " + j + " of bundle " + index).getBytes(UTF8));
+                    out.closeEntry();
+                }
+                out.putNextEntry(new JarEntry(revisionEntryName(index)));
+                out.write(String.valueOf(revision).getBytes(UTF8));
+                out.closeEntry();
+            } finally {
+                out.close();
+            }
+            return jarFile;
+        }
+
+        File projectDirectory = new File(rootDirectory, "bundle" + index);
+        File classesDirectory = new File(projectDirectory, "target/classes");
+        File manifestFile = new File(classesDirectory, "META-INF/MANIFEST.MF");
+        if (!manifestFile.exists()) {
+            manifestFile.getParentFile().mkdirs();
+            OutputStream manifestOut = new FileOutputStream(manifestFile);
+            try {
+                createManifest(index).write(manifestOut);
+            } finally {
+                manifestOut.close();
+            }
+            for (int j = 0; j < entriesPerBundle; j++) {
+                writeFile(new File(classesDirectory, "bench/p" + index + "/Entry" + j + ".class"),
+                        ("entry " + j + " of bundle " + index).getBytes(UTF8));
+            }
+        }
+        writeFile(new File(classesDirectory, revisionEntryName(index)), String.valueOf(revision).getBytes(UTF8));
+        return projectDirectory;
+    }
+}
@@ -0,0 +1,118 @@
+/**
+ * This file is part of Everit - OSGi Rich Console.
+ *
+ * Everit - OSGi Rich Console is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit - OSGi Rich Console is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit - OSGi Rich Console.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.dev.richconsole.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.everit.osgi.dev.richconsole.RichConsoleConstants;
+import org.everit.osgi.dev.richconsole.internal.upgrade.EmbeddedUpgradeService;
+import org.everit.osgi.dev.richconsole.internal.upgrade.TCPServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the round trip of a command that does not touch the framework, once over the TCP port and once over the
+ * Unix domain socket of the upgrade service, so the difference is the cost of the transport.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TransportLatencyBenchmark {
+
+    /**
+     * The transport the client connects with.
+     */
+    public enum Transport {
+        TCP, UNIX
+    }
+
+    private static final int RESPONSE_BUFFER_SIZE = 256;
+
+    private SocketChannel channel;
+
+    private final ByteBuffer command = ByteBuffer.wrap((RichConsoleConstants.TCPCOMMAND_GET_ENVIRONMENT_ID + "\n")
+            .getBytes(StandardCharsets.UTF_8));
+
+    private EmbeddedUpgradeService embeddedUpgradeService;
+
+    private final ByteBuffer response = ByteBuffer.allocate(RESPONSE_BUFFER_SIZE);
+
+    private TCPServer server;
+
+    @Param({ "TCP", "UNIX" })
+    public Transport transport;
+
+    @Benchmark
+    public int roundTrip() throws IOException {
+        command.rewind();
+        while (command.hasRemaining()) {
+            channel.write(command);
+        }
+        response.clear();
+        int length = 0;
+        while ((length == 0) || (response.get(length - 1) != '\n')) {
+            if (channel.read(response) < 0) {
+                throw new IOException("Connection closed by the upgrade service");
+            }
+            length = response.position();
+        }
+        return length;
+    }
+
+    @Setup
+    public void setUp() throws Exception {
+        embeddedUpgradeService = new EmbeddedUpgradeService();
+
+        if (transport == Transport.TCP) {
+            server = new TCPServer(embeddedUpgradeService.getUpgradeService(), 0);
+            channel = SocketChannel.open(new InetSocketAddress(InetAddress.getLocalHost(), server.getLocalPort()));
+            channel.socket().setTcpNoDelay(true);
+        } else {
+            File socketFile = new File(embeddedUpgradeService.getTempDirectory(), "upgrade.sock");
+            server = new TCPServer(embeddedUpgradeService.getUpgradeService(), socketFile);
+            channel = SocketChannel.open(UnixDomainSocketAddress.of(socketFile.toPath()));
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        channel.close();
+        server.close();
+        embeddedUpgradeService.stop();
+    }
+}
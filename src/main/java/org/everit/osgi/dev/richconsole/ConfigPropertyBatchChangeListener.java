@@ -0,0 +1,35 @@
+/**
+ * This file is part of Everit - OSGi Rich Console.
+ *
+ * Everit - OSGi Rich Console is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit - OSGi Rich Console is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit - OSGi Rich Console.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.dev.richconsole;
+
+import java.util.Map;
+
+/**
+ * A listener that receives the changes that are delivered together in one call instead of calling
+ * {@link #propertyChanged(String, String)} for every key. The changes of a {@link ConfigStore#setProperties(Map)} call
+ * are always delivered together.
+ */
+public interface ConfigPropertyBatchChangeListener extends ConfigPropertyChangeListener {
+
+    /**
+     * Called instead of {@link #propertyChanged(String, String)} when properties change.
+     *
+     * @param changes
+     *            The new values of the changed properties by their keys. The value is null if the property was removed.
+     */
+    void propertiesChanged(Map<String, String> changes);
+}
@@ -0,0 +1,36 @@
+/**
+ * This file is part of Everit - OSGi Rich Console.
+ *
+ * Everit - OSGi Rich Console is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit - OSGi Rich Console is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit - OSGi Rich Console.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.dev.richconsole;
+
+import java.util.Set;
+
+/**
+ * An immutable view of the properties of a {@link ConfigStore} at a point in time. Every change of the store creates a
+ * new snapshot with a higher version, so comparing the versions of two snapshots is enough to find out whether anything
+ * changed between them.
+ */
+public interface ConfigSnapshot {
+
+    Set<String> getKeys();
+
+    String getProperty(String key);
+
+    /**
+     * The version of the snapshot that is incremented by every change of the store.
+     */
+    long getVersion();
+}
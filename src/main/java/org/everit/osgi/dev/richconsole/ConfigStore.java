@@ -15,17 +15,81 @@
  * along with Everit - OSGi Rich Console.  If not, see <http://www.gnu.org/licenses/>.
  */
 package org.everit.osgi.dev.richconsole;
+
+import java.util.Map;
+
 public interface ConfigStore {
 
     String SYSPROP_SETTINGS_FILE_PATH = "org.everit.osgi.dev.richconsole.SettingsFile";
 
+    /**
+     * The delay in milliseconds after a change before the settings are written to the settings file. The changes made
+     * within the delay are written together. If the value is 0, the settings file is written on every change.
+     */
+    String SYSPROP_SETTINGS_PERSIST_DELAY = "org.everit.osgi.dev.richconsole.SettingsPersistDelay";
+
     void addPropertyChangeListener(ConfigPropertyChangeListener listener);
 
+    /**
+     * Registers a listener that is notified asynchronously after the properties change.
+     *
+     * @param listener
+     *            The listener.
+     * @param eventDispatchThread
+     *            Whether the listener should be notified on the event dispatch thread. Listeners that update Swing
+     *            components should be notified on the event dispatch thread.
+     */
+    void addPropertyChangeListener(ConfigPropertyChangeListener listener, boolean eventDispatchThread);
+
+    /**
+     * Registers a listener that is notified asynchronously after the property with the specified key changes.
+     *
+     * @param key
+     *            The key of the property.
+     * @param listener
+     *            The listener.
+     * @param eventDispatchThread
+     *            Whether the listener should be notified on the event dispatch thread.
+     */
+    void addPropertyChangeListener(String key, ConfigPropertyChangeListener listener, boolean eventDispatchThread);
+
+    /**
+     * Registers a listener that is notified asynchronously after a property with a key that starts with the specified
+     * prefix changes. Extensions should store their settings with their own prefix and listen to that prefix.
+     *
+     * @param keyPrefix
+     *            The prefix of the keys.
+     * @param listener
+     *            The listener.
+     * @param eventDispatchThread
+     *            Whether the listener should be notified on the event dispatch thread.
+     */
+    void addPropertyChangeListenerForPrefix(String keyPrefix, ConfigPropertyChangeListener listener,
+            boolean eventDispatchThread);
+
     String getProperty(String key);
 
     String getSettingsFilePath();
 
+    /**
+     * Removes every registration of a listener.
+     */
     void removePropertyChangeListener(ConfigPropertyChangeListener listener);
 
+    /**
+     * Applies more changes atomically. The settings file is written once and the listeners are notified about the
+     * changed keys together.
+     *
+     * @param changes
+     *            The new values of the properties by their keys. If a value is null, the property is removed.
+     */
+    void setProperties(Map<String, String> changes);
+
     void setProperty(String key, String value);
+
+    /**
+     * Returns the current state of the store. Reading more keys from the same snapshot gives a consistent view of the
+     * properties and the version of the snapshot can be used to detect changes without registering a listener.
+     */
+    ConfigSnapshot snapshot();
 }
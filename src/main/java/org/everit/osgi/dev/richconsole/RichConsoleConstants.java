@@ -29,12 +29,51 @@ public final class RichConsoleConstants {
      */
     public static final String ENV_EOSGI_UPGRADE_SERVICE_PORT = "EOSGI_UPGRADE_SERVICE_PORT";
 
+    /**
+     * With the "EOSGI_UPGRADE_SERVICE_SOCKET" environment variable, it is possible to specify the path of a Unix domain
+     * socket where the upgrade service listens on in addition to the TCP port. The socket accepts the same commands as
+     * the TCP Server. Unix domain sockets are supported from Java 16. To listen only on the socket, set
+     * {@link #ENV_EOSGI_UPGRADE_SERVICE_PORT} to -1.
+     */
+    public static final String ENV_EOSGI_UPGRADE_SERVICE_SOCKET = "EOSGI_UPGRADE_SERVICE_SOCKET";
+
     /**
      * System property that tells the id of the OSGi environment. The id is useful if more than one OSGi container is
      * started.
      */
     public static final String SYSPROP_ENVIRONMENT_ID = "eosgi.environment.id";
 
+    /**
+     * In case the "eosgi.richconsole.redefineClasses" system property has the value "true", the changes of a directory
+     * bundle that only touch existing class files are applied by redefining the loaded classes instead of updating the
+     * bundle. The richconsole jar is attached to the JVM as an agent for this purpose, or it can be passed to the JVM
+     * with the -javaagent option. From Java 9 the JVM attaches an agent to itself only if it is started with
+     * -Djdk.attach.allowAttachSelf=true, so either that option or -javaagent is needed. If the classes cannot be
+     * redefined, the bundle is updated as usual.
+     */
+    public static final String SYSPROP_REDEFINE_CLASSES = "eosgi.richconsole.redefineClasses";
+
+    /**
+     * In case the "eosgi.richconsole.upgradeParallelStart" system property has the value "true", the bundles are
+     * started concurrently at the end of an upgrade. The bundles are started by their start level and a bundle is
+     * started only after the bundles with the same start level that it is wired to.
+     */
+    public static final String SYSPROP_UPGRADE_PARALLEL_START = "eosgi.richconsole.upgradeParallelStart";
+
+    /**
+     * System property that selects how the bundles are stopped when an upgrade process updates or uninstalls a
+     * bundle. The value can be {@link #UPGRADE_STOP_STRATEGY_DEPENDENCY_CLOSURE} (default) or
+     * {@link #UPGRADE_STOP_STRATEGY_START_LEVEL}.
+     */
+    public static final String SYSPROP_UPGRADE_STOP_STRATEGY = "eosgi.richconsole.upgradeStopStrategy";
+
+    /**
+     * In case the "eosgi.richconsole.watchDirectoryBundles" system property has the value "true", the target/classes
+     * folders of the bundles that were deployed from maven projects are watched and the bundles are redeployed
+     * automatically when the content of the folders changes.
+     */
+    public static final String SYSPROP_WATCH_DIRECTORY_BUNDLES = "eosgi.richconsole.watchDirectoryBundles";
+
     /**
      * Command of deploying a bundle. The command has one parameter that is the location of the bundle with the
      * following syntax: [reference:]file:fileURI[@[2:][start]] <br>
@@ -43,22 +82,92 @@ public final class RichConsoleConstants {
      */
     public static final String TCPCOMMAND_DEPLOY_BUNDLE = "deployBundle";
 
+    /**
+     * Deploys a batch of bundles in one upgrade process. The parameter of the command is either the number of the lines
+     * that follow the command or the path of a list file prefixed with "@". Each following line or each line of the
+     * list file is a deployment with the same syntax as the parameter of {@link #TCPCOMMAND_DEPLOY_BUNDLE}; empty lines
+     * and lines starting with "#" are ignored in the list file. E.g.: "deployBundles 2" followed by two locations, or
+     * "deployBundles @/tmp/bundles.txt". At most 4096 lines can follow the command; the connection is dropped if the
+     * number is larger. The manifests of the bundles are read in parallel before any of them is deployed. If a
+     * deployment has invalid syntax, none of the bundles is deployed. The server answers one line with the syntax
+     * "ok|failed deployedCount/totalCount [failedLocation]...".
+     */
+    public static final String TCPCOMMAND_DEPLOY_BUNDLES = "deployBundles";
+
     /**
      * The TCP server answers the value of the {@link #SYSPROP_ENVIRONMENT_ID} system property.
      */
     public static final String TCPCOMMAND_GET_ENVIRONMENT_ID = "getEnvironmentId";
 
+    /**
+     * Switches the protocol version of the connection. E.g.: "protocol 2". The server answers "ok" or "failed" if the
+     * version is not supported. With version 2 every command line starts with an id chosen by the client and a space,
+     * e.g. "7 deployBundle file:/path/to/project@start". Every response line starts with the id of the command it
+     * answers, the lines of the progress stream start with {@link #TCPRESPONSE_UNTAGGED_ID}. The deploy and
+     * getEnvironmentId commands are executed concurrently and they are answered in completion order; "ok" or "failed"
+     * is answered to a deploy command depending on whether the bundle could be deployed. The other commands wait for the
+     * previous commands of the connection to finish and the next commands wait for them. Version 1 is the default.
+     */
+    public static final String TCPCOMMAND_PROTOCOL = "protocol";
+
+    /**
+     * Enables the progress stream on the connection. After the command the server answers "ok" and sends a
+     * {@link #TCPRESPONSE_PROGRESS} line for each finished phase of the upgrade process as it happens. When the client
+     * closes its output, the process is finished and the server sends a {@link #TCPRESPONSE_FAILURE} line for each
+     * error and a closing {@link #TCPRESPONSE_FINISHED} line before it closes the connection.
+     */
+    public static final String TCPCOMMAND_STREAM_PROGRESS = "streamProgress";
+
     /**
      * Uninstalls a bundle. The parameter of the command is the symbolic name and optionally the version of the bundle
      * separated with double point. E.g.: "uninstallBundle com.myBundle:2.0.0"
      */
     public static final String TCPCOMMAND_UNINSTALL = "uninstallBundle";
 
+    /**
+     * Marks a failed phase or a failed upgrade process in the progress stream.
+     */
+    public static final String TCPRESPONSE_FAILED = "failed";
+
+    /**
+     * An error of the upgrade process in the progress stream. Syntax: "failure subject message", where the subject is
+     * the location or the description of the bundle.
+     */
+    public static final String TCPRESPONSE_FAILURE = "failure";
+
+    /**
+     * The last line of the progress stream. Syntax: "finished ok|failed totalMillis [PHASE=millis]...", where the
+     * phases are the total time spent in each phase of the process.
+     */
+    public static final String TCPRESPONSE_FINISHED = "finished";
+
     /**
      * The answer of several TCP commands.
      */
     public static final String TCPRESPONSE_OK = "ok";
 
+    /**
+     * A finished phase in the progress stream. Syntax: "progress PHASE symbolicName:version|- ok|failed millis".
+     */
+    public static final String TCPRESPONSE_PROGRESS = "progress";
+
+    /**
+     * The id of the lines that do not answer a specific command with the second version of the protocol.
+     */
+    public static final String TCPRESPONSE_UNTAGGED_ID = "*";
+
+    /**
+     * Only the dependency closure of the updated or uninstalled bundle is stopped and it is started again after the
+     * refresh.
+     */
+    public static final String UPGRADE_STOP_STRATEGY_DEPENDENCY_CLOSURE = "dependencyClosure";
+
+    /**
+     * The start level of the framework is lowered below the start level of the updated or uninstalled bundle, so every
+     * bundle above that level is stopped. The original start level is restored after the refresh.
+     */
+    public static final String UPGRADE_STOP_STRATEGY_START_LEVEL = "startLevel";
+
     private RichConsoleConstants() {
     }
 }
@@ -17,6 +17,7 @@
 package org.everit.osgi.dev.richconsole.internal;
 
 import java.awt.GraphicsEnvironment;
+import java.io.File;
 import java.util.Hashtable;
 
 import org.everit.osgi.dev.richconsole.RichConsoleConstants;
@@ -38,6 +39,8 @@ public class Activator implements BundleActivator {
 
     private TCPServer tcpServer = null;
 
+    private TCPServer unixSocketServer = null;
+
     private UpgradeServiceImpl upgradeService = null;
 
     private int getTCPPort() {
@@ -77,9 +80,19 @@ public class Activator implements BundleActivator {
         if (tcpPort >= 0) {
             tcpServer = new TCPServer(upgradeService, tcpPort);
             int localPort = tcpServer.getLocalPort();
-            Logger.info("Richconsole is listening on port " + localPort);
-            if (bundleManager != null) {
-                bundleManager.setTCPPort(localPort);
+            if (localPort >= 0) {
+                Logger.info("Richconsole is listening on port " + localPort);
+                if (bundleManager != null) {
+                    bundleManager.setTCPPort(localPort);
+                }
+            }
+        }
+
+        String socketPath = System.getenv(RichConsoleConstants.ENV_EOSGI_UPGRADE_SERVICE_SOCKET);
+        if (socketPath != null) {
+            unixSocketServer = new TCPServer(upgradeService, new File(socketPath));
+            if (unixSocketServer.isStarted()) {
+                Logger.info("Richconsole is listening on Unix domain socket " + socketPath);
             }
         }
     }
@@ -89,6 +102,9 @@ public class Activator implements BundleActivator {
         if (tcpServer != null) {
             tcpServer.close();
         }
+        if (unixSocketServer != null) {
+            unixSocketServer.close();
+        }
 
         if (settingsExtension != null) {
             settingsExtension.close();
@@ -63,7 +63,11 @@ public class BundleDeployerFrame implements RichConsoleService {
 
     private final UpgradeServiceImpl bundleServiceImpl;
 
-    private ConfigStore configStore;
+    private ConfigStoreImpl configStore;
+
+    private DeployQueue deployQueue;
+
+    private JLabel deployQueueLabel = null;
 
     private final Runnable disposerAction;
 
@@ -90,7 +94,13 @@ public class BundleDeployerFrame implements RichConsoleService {
     }
 
     public void close() {
+        if (deployQueue != null) {
+            deployQueue.close();
+        }
         EventQueue.invokeLater(disposerAction);
+        if (configStore != null) {
+            configStore.close();
+        }
     }
 
     @Override
@@ -154,15 +164,13 @@ public class BundleDeployerFrame implements RichConsoleService {
         if (label != null) {
             jlabel.setText(label);
         }
-        configStore.addPropertyChangeListener(new ConfigPropertyChangeListener() {
+        configStore.addPropertyChangeListener(SettingsFrame.DEPLOYER_WINDOW_LABEL, new ConfigPropertyChangeListener() {
 
             @Override
             public void propertyChanged(final String key, final String value) {
-                if (SettingsFrame.DEPLOYER_WINDOW_LABEL.equals(key)) {
-                    jlabel.setText(value);
-                }
+                jlabel.setText(value);
             }
-        });
+        }, true);
 
         tcpPortLabel = new JLabel();
         GridBagConstraints tcpPortLabelC = new GridBagConstraints();
@@ -171,6 +179,27 @@ public class BundleDeployerFrame implements RichConsoleService {
         tcpPortLabelC.insets = new Insets(14, 40, 0, 10);
         panel.add(tcpPortLabel, tcpPortLabelC);
 
+        deployQueueLabel = new JLabel();
+        GridBagConstraints deployQueueLabelC = new GridBagConstraints();
+        deployQueueLabelC.gridx = 1;
+        deployQueueLabelC.gridy = 1;
+        deployQueueLabelC.insets = new Insets(14, 0, 0, 10);
+        panel.add(deployQueueLabel, deployQueueLabelC);
+
+        deployQueue = new DeployQueue(bundleServiceImpl, new DeployQueue.StateListener() {
+
+            @Override
+            public void stateChanged(final int queuedFileCount, final boolean deploying) {
+                EventQueue.invokeLater(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        updateDeployQueueLabel(queuedFileCount, deploying);
+                    }
+                });
+            }
+        });
+
         String javaSpecVersion = System.getProperty("java.vm.specification.version");
 
         if ("1.6".compareTo(javaSpecVersion) < 0) {
@@ -232,16 +261,11 @@ public class BundleDeployerFrame implements RichConsoleService {
                         dtde.acceptDrop(DnDConstants.ACTION_COPY_OR_MOVE);
                         try {
                             @SuppressWarnings("unchecked")
-                            final List<File> transferDataList =
+                            List<File> transferDataList =
                                     (List<File>) transferable.getTransferData(selectedDataFlavor);
                             dtde.dropComplete(true);
                             Logger.info("Analyzing files if they can be deployed: " + transferDataList.toString());
-                            new Thread(new Runnable() {
-                                @Override
-                                public void run() {
-                                    bundleServiceImpl.deployBundles(transferDataList);
-                                };
-                            }).start();
+                            deployQueue.offer(transferDataList);
                         } catch (UnsupportedFlavorException e) {
                             Logger.error("Unsupported drop flavor on Deployer window", e);
                         } catch (IOException e) {
@@ -283,4 +307,14 @@ public class BundleDeployerFrame implements RichConsoleService {
         }
         smallFrame.setVisible(true);
     }
+
+    private void updateDeployQueueLabel(final int queuedFileCount, final boolean deploying) {
+        if (queuedFileCount > 0) {
+            deployQueueLabel.setText(queuedFileCount + " queued");
+        } else if (deploying) {
+            deployQueueLabel.setText("deploying");
+        } else {
+            deployQueueLabel.setText("");
+        }
+    }
 }
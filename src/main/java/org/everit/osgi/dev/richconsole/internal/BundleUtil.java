@@ -18,7 +18,12 @@ package org.everit.osgi.dev.richconsole.internal;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
 import java.util.jar.Attributes;
 import java.util.jar.Manifest;
 
@@ -54,19 +59,27 @@ public class BundleUtil {
         return String.valueOf(code);
     }
 
+    /**
+     * Cuts the directives and attributes from the value of the Bundle-SymbolicName header.
+     */
+    public static String extractSymbolicName(final String symbolicNameHeader) {
+        if (symbolicNameHeader == null) {
+            return null;
+        }
+        int semicolonIndex = symbolicNameHeader.indexOf(';');
+        if (semicolonIndex > 0) {
+            return symbolicNameHeader.substring(0, semicolonIndex).trim();
+        }
+        return symbolicNameHeader;
+    }
+
     public static String getBundleLocationByFile(final File file) throws IOException {
         return "reference:" + file.getAbsoluteFile().toURI().toString();
     }
 
     public static BundleData readBundleDataFromManifest(final File bundleLocationFile, final Manifest manifest) {
         Attributes mainAttributes = manifest.getMainAttributes();
-        String symbolicName = mainAttributes.getValue("Bundle-SymbolicName");
-        if (symbolicName != null) {
-            int semicolonIndex = symbolicName.indexOf(';');
-            if (semicolonIndex > 0) {
-                symbolicName = symbolicName.substring(0, semicolonIndex);
-            }
-        }
+        String symbolicName = extractSymbolicName(mainAttributes.getValue("Bundle-SymbolicName"));
         String version = mainAttributes.getValue("Bundle-Version");
 
         return new BundleData(bundleLocationFile, symbolicName, version);
@@ -88,4 +101,42 @@ public class BundleUtil {
             }
         }
     }
+
+    /**
+     * Writes properties to a file. The properties are written to a temporary file next to the target file that replaces
+     * the target file afterwards, so the file is not corrupted if the process dies during the write. The file is
+     * replaced atomically if the file system supports it.
+     *
+     * @param properties
+     *            The properties to write.
+     * @param comment
+     *            The comment at the beginning of the file or null.
+     * @param file
+     *            The file to replace.
+     * @throws IOException
+     *             if the properties could not be written or the file could not be replaced.
+     */
+    public static void storePropertiesAtomically(final Properties properties, final String comment, final File file)
+            throws IOException {
+        File tempFile = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+        try {
+            FileOutputStream fout = new FileOutputStream(tempFile);
+            try {
+                properties.store(fout, comment);
+                fout.getFD().sync();
+            } finally {
+                fout.close();
+            }
+            try {
+                Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            if (tempFile.exists() && !tempFile.delete()) {
+                Logger.warn("Could not delete temporary file: " + tempFile.getAbsolutePath());
+            }
+        }
+    }
 }
@@ -0,0 +1,165 @@
+/**
+ * This file is part of Everit - OSGi Rich Console.
+ *
+ * Everit - OSGi Rich Console is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit - OSGi Rich Console is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit - OSGi Rich Console.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.dev.richconsole.internal;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.everit.osgi.dev.richconsole.ConfigPropertyChangeListener;
+
+/**
+ * Indexes the configuration change listeners by the keys they are interested in. The index is a trie of the keys and
+ * the prefixes; a listener that is interested in every key is registered with the empty prefix at the root. Finding the
+ * listeners of a key costs one step per character of the key plus the number of the interested listeners, regardless
+ * of how many listeners are registered for other keys.
+ */
+class ConfigListenerIndex {
+
+    /**
+     * A listener and the thread it should be notified on.
+     */
+    static class ListenerRegistration {
+
+        private final boolean eventDispatchThread;
+
+        private final ConfigPropertyChangeListener listener;
+
+        public ListenerRegistration(final ConfigPropertyChangeListener listener, final boolean eventDispatchThread) {
+            this.listener = listener;
+            this.eventDispatchThread = eventDispatchThread;
+        }
+
+        public ConfigPropertyChangeListener getListener() {
+            return listener;
+        }
+
+        public boolean isEventDispatchThread() {
+            return eventDispatchThread;
+        }
+    }
+
+    /**
+     * A node of the trie that belongs to the key or prefix that is spelled by the path from the root.
+     */
+    private static class Node {
+
+        private final Map<Character, Node> children = new HashMap<Character, Node>();
+
+        /**
+         * The listeners that are interested in the key of the node only.
+         */
+        private final List<ListenerRegistration> keyListeners = new ArrayList<ListenerRegistration>();
+
+        /**
+         * The listeners that are interested in every key that starts with the prefix of the node.
+         */
+        private final List<ListenerRegistration> prefixListeners = new ArrayList<ListenerRegistration>();
+
+        private boolean isEmpty() {
+            return children.isEmpty() && keyListeners.isEmpty() && prefixListeners.isEmpty();
+        }
+    }
+
+    private final Node root = new Node();
+
+    private static void removeListener(final List<ListenerRegistration> registrations,
+            final ConfigPropertyChangeListener listener) {
+        for (Iterator<ListenerRegistration> iterator = registrations.iterator(); iterator.hasNext();) {
+            if (iterator.next().listener == listener) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Registers a listener.
+     *
+     * @param keyOrPrefix
+     *            The key or the prefix of the keys the listener is interested in. The empty prefix matches every key.
+     * @param prefix
+     *            Whether the listener is interested in every key that starts with the specified prefix.
+     * @param registration
+     *            The listener and the thread it should be notified on.
+     */
+    public synchronized void add(final String keyOrPrefix, final boolean prefix,
+            final ListenerRegistration registration) {
+        Node node = root;
+        for (int i = 0, n = keyOrPrefix.length(); i < n; i++) {
+            Character c = keyOrPrefix.charAt(i);
+            Node child = node.children.get(c);
+            if (child == null) {
+                child = new Node();
+                node.children.put(c, child);
+            }
+            node = child;
+        }
+        if (prefix) {
+            node.prefixListeners.add(registration);
+        } else {
+            node.keyListeners.add(registration);
+        }
+    }
+
+    /**
+     * Collects the listeners that are interested in a key.
+     *
+     * @param key
+     *            The key that changed.
+     * @param result
+     *            The collection the registrations of the interested listeners are added to.
+     */
+    public synchronized void collectListeners(final String key, final Collection<ListenerRegistration> result) {
+        Node node = root;
+        result.addAll(node.prefixListeners);
+        for (int i = 0, n = key.length(); (i < n) && (node != null); i++) {
+            node = node.children.get(key.charAt(i));
+            if (node != null) {
+                result.addAll(node.prefixListeners);
+            }
+        }
+        if (node != null) {
+            result.addAll(node.keyListeners);
+        }
+    }
+
+    /**
+     * Removes every registration of a listener.
+     */
+    public synchronized void remove(final ConfigPropertyChangeListener listener) {
+        remove(root, listener);
+    }
+
+    /**
+     * Removes the registrations of a listener from a node and its descendants.
+     *
+     * @return Whether the node became empty and can be dropped.
+     */
+    private boolean remove(final Node node, final ConfigPropertyChangeListener listener) {
+        removeListener(node.keyListeners, listener);
+        removeListener(node.prefixListeners, listener);
+        for (Iterator<Node> iterator = node.children.values().iterator(); iterator.hasNext();) {
+            if (remove(iterator.next(), listener)) {
+                iterator.remove();
+            }
+        }
+        return node.isEmpty();
+    }
+}
@@ -0,0 +1,107 @@
+/**
+ * This file is part of Everit - OSGi Rich Console.
+ *
+ * Everit - OSGi Rich Console is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit - OSGi Rich Console is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit - OSGi Rich Console.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.dev.richconsole.internal;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Properties;
+import java.util.Set;
+
+import org.everit.osgi.dev.richconsole.ConfigSnapshot;
+
+/**
+ * A snapshot that owns the map of its properties. The map must not be modified after the snapshot is created.
+ */
+class ConfigSnapshotImpl implements ConfigSnapshot {
+
+    private final Set<String> keys;
+
+    private final Map<String, String> properties;
+
+    private final long version;
+
+    public ConfigSnapshotImpl(final long version, final Map<String, String> properties) {
+        this.version = version;
+        this.properties = properties;
+        this.keys = Collections.unmodifiableSet(properties.keySet());
+    }
+
+    public static ConfigSnapshotImpl fromProperties(final long version, final Properties properties) {
+        Map<String, String> map = new HashMap<String, String>();
+        for (String key : properties.stringPropertyNames()) {
+            map.put(key, properties.getProperty(key));
+        }
+        return new ConfigSnapshotImpl(version, map);
+    }
+
+    /**
+     * Creates a modifiable copy of the properties of the snapshot that can be the base of the next snapshot.
+     */
+    public Map<String, String> copyProperties() {
+        return new HashMap<String, String>(properties);
+    }
+
+    /**
+     * Calculates the changes that turn the properties of this snapshot into the properties of another snapshot.
+     *
+     * @return The new values of the changed properties by their keys, where the value is null if the property is
+     *         missing from the other snapshot.
+     */
+    public Map<String, String> getChangesTo(final ConfigSnapshotImpl other) {
+        Map<String, String> changes = new HashMap<String, String>();
+        for (Entry<String, String> entry : other.properties.entrySet()) {
+            if (!entry.getValue().equals(properties.get(entry.getKey()))) {
+                changes.put(entry.getKey(), entry.getValue());
+            }
+        }
+        for (String key : properties.keySet()) {
+            if (!other.properties.containsKey(key)) {
+                changes.put(key, null);
+            }
+        }
+        return changes;
+    }
+
+    @Override
+    public Set<String> getKeys() {
+        return keys;
+    }
+
+    @Override
+    public String getProperty(final String key) {
+        return properties.get(key);
+    }
+
+    @Override
+    public long getVersion() {
+        return version;
+    }
+
+    public boolean hasSameProperties(final ConfigSnapshotImpl other) {
+        return properties.equals(other.properties);
+    }
+
+    public Properties toProperties() {
+        Properties result = new Properties();
+        for (Entry<String, String> entry : properties.entrySet()) {
+            result.setProperty(entry.getKey(), entry.getValue());
+        }
+        return result;
+    }
+}
@@ -15,50 +15,157 @@
  * along with Everit - OSGi Rich Console.  If not, see <http://www.gnu.org/licenses/>.
  */
 package org.everit.osgi.dev.richconsole.internal;
+
+import java.awt.EventQueue;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Properties;
-import java.util.Set;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
+import org.everit.osgi.dev.richconsole.ConfigPropertyBatchChangeListener;
 import org.everit.osgi.dev.richconsole.ConfigPropertyChangeListener;
+import org.everit.osgi.dev.richconsole.ConfigSnapshot;
 import org.everit.osgi.dev.richconsole.ConfigStore;
+import org.everit.osgi.dev.richconsole.internal.ConfigListenerIndex.ListenerRegistration;
 import org.osgi.framework.BundleContext;
 
+/**
+ * Stores the settings in a properties file. The properties are kept in an immutable snapshot that is replaced by every
+ * change, so reading the properties needs no locking. The file is written behind the changes: a change marks the store
+ * dirty and the settings are written after a short delay, so the changes that come in a row are written at once. The
+ * pending changes are written when the store is closed. The file is always replaced atomically by a temporary file, so
+ * a crash never leaves a truncated settings file behind. The settings file is watched, and the changes that others make
+ * to it are applied to the store and passed to the listeners.
+ * <p>
+ * The listeners are notified asynchronously on a notifier thread after the change is applied, so a slow listener
+ * does not block the users of the store. The changes of the same key that happen before the listeners are notified are
+ * coalesced: only the last value is passed to the listeners. The listeners that work with Swing components can ask to
+ * be notified on the event dispatch thread. A listener can be registered for one key or for the keys with a prefix, so
+ * it is only notified about the changes it is interested in.
+ */
 public class ConfigStoreImpl implements ConfigStore {
 
+    private static final long DEFAULT_PERSIST_DELAY_MILLIS = 500;
+
     private static final String DEFAULT_SETTINGS_FILE_NAME = "richConsoleSettings.properties";
 
+    private static final long PERSIST_TERMINATION_TIMEOUT_MILLIS = 5000;
+
     private static final String SETTINGS_FILE_COMMENT = "Settings file of EOSGi Richconsole";
 
-    private ReadWriteLock listenerLocker = new ReentrantReadWriteLock(false);
+    private boolean closed = false;
+
+    private final ConfigListenerIndex listenerIndex = new ConfigListenerIndex();
+
+    /**
+     * The changes of the store are serialized by this lock. The readers do not use it.
+     */
+    private final Object modificationLock = new Object();
+
+    private final Runnable notificationAction = new Runnable() {
+
+        @Override
+        public void run() {
+            notifyListeners();
+        }
+    };
+
+    private final ExecutorService notificationExecutor = Executors
+            .newSingleThreadExecutor(newDaemonThreadFactory("richconsole-settings-notifier"));
+
+    /**
+     * Guarded by {@link #pendingChanges}.
+     */
+    private boolean notificationScheduled = false;
+
+    /**
+     * The changes that the listeners have not been notified about yet, in the order of their last change. A null value
+     * means that the property was removed.
+     */
+    private final Map<String, String> pendingChanges = new LinkedHashMap<String, String>();
+
+    private final Runnable persistAction = new Runnable() {
+
+        @Override
+        public void run() {
+            synchronized (persistSchedulingLock) {
+                persistScheduled = false;
+            }
+            persist();
+        }
+    };
+
+    private final long persistDelayMillis;
+
+    /**
+     * The content of the settings file as it was last written or read by the store. Guarded by {@link #persistLock}.
+     */
+    private ConfigSnapshotImpl persistedSnapshot;
+
+    /**
+     * Null if the settings file is written on every change.
+     */
+    private final ScheduledExecutorService persistExecutor;
 
-    private List<ConfigPropertyChangeListener> listeners = new ArrayList<ConfigPropertyChangeListener>();
+    /**
+     * Makes sure that the snapshots of the properties are written to the file in the same order as they are taken.
+     */
+    private final Object persistLock = new Object();
 
-    private Properties properties = new Properties();
+    private boolean persistScheduled = false;
 
-    private ReadWriteLock propertiesLocker = new ReentrantReadWriteLock(false);
+    /**
+     * Guards the {@link #persistScheduled} and {@link #closed} flags.
+     */
+    private final Object persistSchedulingLock = new Object();
 
     private final File settingsFile;
 
+    /**
+     * Null if the settings file cannot be watched.
+     */
+    private SettingsFileWatcher settingsFileWatcher = null;
+
+    /**
+     * The current state of the store. A change publishes a new snapshot, so the readers never lock.
+     */
+    private volatile ConfigSnapshotImpl snapshot;
+
     public ConfigStoreImpl(final BundleContext richConsoleContext) {
+        persistDelayMillis =
+                Math.max(0, Long.getLong(ConfigStore.SYSPROP_SETTINGS_PERSIST_DELAY, DEFAULT_PERSIST_DELAY_MILLIS));
+        if (persistDelayMillis > 0) {
+            ScheduledThreadPoolExecutor executor =
+                    new ScheduledThreadPoolExecutor(1, newDaemonThreadFactory("richconsole-settings-writer"));
+            executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+            persistExecutor = executor;
+        } else {
+            persistExecutor = null;
+        }
+
         String settingsFilePathSysProp = System.getProperty(ConfigStore.SYSPROP_SETTINGS_FILE_PATH);
         if (settingsFilePathSysProp == null) {
             settingsFile = richConsoleContext.getDataFile(DEFAULT_SETTINGS_FILE_NAME);
         } else {
             settingsFile = new File(settingsFilePathSysProp);
         }
+        Properties properties = new Properties();
         if (settingsFile.exists()) {
             FileInputStream fin = null;
             try {
@@ -78,36 +185,111 @@ public class ConfigStoreImpl implements ConfigStore {
         } else {
             File parentFile = settingsFile.getParentFile();
             parentFile.mkdirs();
-            FileOutputStream fout = null;
             try {
-                fout = new FileOutputStream(settingsFile);
-                properties.store(fout, SETTINGS_FILE_COMMENT);
+                writeSettingsFile(properties, SETTINGS_FILE_COMMENT);
             } catch (IOException e) {
                 Logger.error("Error saving settings file: " + settingsFile.getAbsolutePath(), e);
-            } finally {
-                if (fout != null) {
-                    try {
-                        fout.close();
-                    } catch (IOException e) {
-                        Logger.error("Error closing settings file after saving it: " + settingsFile.getAbsolutePath(),
-                                e);
-                    }
-                }
+            }
+        }
+        snapshot = ConfigSnapshotImpl.fromProperties(0, properties);
+        persistedSnapshot = snapshot;
+
+        try {
+            settingsFileWatcher = new SettingsFileWatcher(this, settingsFile);
+        } catch (IOException e) {
+            Logger.error("Cannot watch settings file for external changes: " + settingsFile.getAbsolutePath(), e);
+        }
+    }
+
+    private static ThreadFactory newDaemonThreadFactory(final String threadName) {
+        return new ThreadFactory() {
+
+            @Override
+            public Thread newThread(final Runnable r) {
+                Thread thread = new Thread(r, threadName);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    private static void notifyListener(final ConfigPropertyChangeListener listener, final Map<String, String> changes) {
+        if (listener instanceof ConfigPropertyBatchChangeListener) {
+            try {
+                ((ConfigPropertyBatchChangeListener) listener).propertiesChanged(Collections.unmodifiableMap(changes));
+            } catch (RuntimeException e) {
+                Logger.error("Error during calling configuration change listener with changes " + changes, e);
+            }
+            return;
+        }
+        for (Entry<String, String> change : changes.entrySet()) {
+            try {
+                listener.propertyChanged(change.getKey(), change.getValue());
+            } catch (RuntimeException e) {
+                String value = change.getValue();
+                Logger.error("Error during calling configuration change listener with parameters key='"
+                        + change.getKey() + "'; value=" + ((value != null) ? ("'" + value + "'") : "null"), e);
             }
         }
     }
 
     @Override
     public void addPropertyChangeListener(final ConfigPropertyChangeListener listener) {
-        Lock writeLock = listenerLocker.writeLock();
-        writeLock.lock();
-        listeners.add(listener);
-        writeLock.unlock();
+        addPropertyChangeListener(listener, false);
+    }
+
+    @Override
+    public void addPropertyChangeListener(final ConfigPropertyChangeListener listener,
+            final boolean eventDispatchThread) {
+        listenerIndex.add("", true, new ListenerRegistration(listener, eventDispatchThread));
+    }
+
+    @Override
+    public void addPropertyChangeListener(final String key, final ConfigPropertyChangeListener listener,
+            final boolean eventDispatchThread) {
+        listenerIndex.add(key, false, new ListenerRegistration(listener, eventDispatchThread));
+    }
+
+    @Override
+    public void addPropertyChangeListenerForPrefix(final String keyPrefix,
+            final ConfigPropertyChangeListener listener, final boolean eventDispatchThread) {
+        listenerIndex.add(keyPrefix, true, new ListenerRegistration(listener, eventDispatchThread));
+    }
+
+    /**
+     * Writes the pending changes to the settings file and stops the background writer. The changes that are made after
+     * the store is closed are written immediately.
+     */
+    public void close() {
+        if (settingsFileWatcher != null) {
+            try {
+                settingsFileWatcher.close();
+            } catch (IOException e) {
+                Logger.error("Error during closing the watcher of the settings file", e);
+            }
+        }
+        boolean persistPending;
+        synchronized (persistSchedulingLock) {
+            closed = true;
+            persistPending = persistScheduled;
+            persistScheduled = false;
+        }
+        if (persistExecutor != null) {
+            persistExecutor.shutdown();
+            try {
+                persistExecutor.awaitTermination(PERSIST_TERMINATION_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (persistPending) {
+            persist();
+        }
+        notificationExecutor.shutdown();
     }
 
     public void exportToFile(final File file) {
-        Lock readLock = propertiesLocker.readLock();
-        readLock.lock();
+        Properties properties = snapshot.toProperties();
         FileOutputStream fout = null;
         try {
             fout = new FileOutputStream(file);
@@ -115,17 +297,19 @@ public class ConfigStoreImpl implements ConfigStore {
         } catch (IOException e) {
             Logger.error("Error during exporting configuration to file " + file.toString(), e);
         } finally {
-            readLock.unlock();
+            if (fout != null) {
+                try {
+                    fout.close();
+                } catch (IOException e) {
+                    Logger.error("Error closing exported configuration file " + file.toString(), e);
+                }
+            }
         }
     }
 
     @Override
     public String getProperty(final String key) {
-        Lock readLock = propertiesLocker.readLock();
-        readLock.lock();
-        String result = properties.getProperty(key);
-        readLock.unlock();
-        return result;
+        return snapshot.getProperty(key);
     }
 
     @Override
@@ -134,121 +318,242 @@ public class ConfigStoreImpl implements ConfigStore {
     }
 
     public void importFromFile(final File file, final boolean cleanImport) {
-        Lock writeLock = propertiesLocker.writeLock();
-        writeLock.lock();
-
-        Set<Object> droppedProperties = new HashSet<Object>(properties.keySet());
-        Map<Object, Object> modifiedProperties = new HashMap<Object, Object>();
-        Map<Object, Object> addedProperties = new HashMap<Object, Object>();
-
+        Properties newProperties = new Properties();
         FileInputStream fin = null;
         try {
             fin = new FileInputStream(file);
-            Properties newProperties = new Properties();
             newProperties.load(fin);
+        } catch (IOException e) {
+            Logger.error("Error during importing settings from file " + file.toString(), e);
+            return;
+        } finally {
+            if (fin != null) {
+                try {
+                    fin.close();
+                } catch (IOException e) {
+                    Logger.error("Error closing settings file after importing: " + file.toString(), e);
+                }
+            }
+        }
 
-            if (cleanImport) {
-                properties.clear();
+        Map<String, String> changes = new HashMap<String, String>();
+        if (cleanImport) {
+            for (String key : snapshot.getKeys()) {
+                changes.put(key, null);
             }
+        }
+        for (String key : newProperties.stringPropertyNames()) {
+            changes.put(key, newProperties.getProperty(key));
+        }
+        setProperties(changes);
+    }
 
-            for (Entry<Object, Object> newEntry : newProperties.entrySet()) {
-                boolean modified = droppedProperties.remove(newEntry.getKey());
-                Object newEntryKey = newEntry.getKey();
-                Object newEntryValue = newEntry.getValue();
-                if (modified) {
-                    modifiedProperties.put(newEntryKey, newEntryValue);
-                } else {
-                    addedProperties.put(newEntryKey, newEntryValue);
+    /**
+     * Notifies the listeners about the pending changes. The listeners that asked for it are notified on the event
+     * dispatch thread.
+     */
+    private void notifyListeners() {
+        Map<String, String> changes;
+        synchronized (pendingChanges) {
+            changes = new LinkedHashMap<String, String>(pendingChanges);
+            pendingChanges.clear();
+            notificationScheduled = false;
+        }
+
+        final Map<ListenerRegistration, Map<String, String>> changesByListener =
+                new IdentityHashMap<ListenerRegistration, Map<String, String>>();
+        List<ListenerRegistration> interestedListeners = new ArrayList<ListenerRegistration>();
+        for (Entry<String, String> change : changes.entrySet()) {
+            interestedListeners.clear();
+            listenerIndex.collectListeners(change.getKey(), interestedListeners);
+            for (ListenerRegistration registration : interestedListeners) {
+                Map<String, String> listenerChanges = changesByListener.get(registration);
+                if (listenerChanges == null) {
+                    listenerChanges = new LinkedHashMap<String, String>();
+                    changesByListener.put(registration, listenerChanges);
                 }
-                properties.put(newEntryKey, newEntry.getValue());
+                listenerChanges.put(change.getKey(), change.getValue());
             }
-            persist();
+        }
 
-            Lock listenerReadLock = listenerLocker.readLock();
-            listenerReadLock.lock();
+        boolean eventDispatchThreadListenerFound = false;
+        for (Entry<ListenerRegistration, Map<String, String>> entry : changesByListener.entrySet()) {
+            ListenerRegistration registration = entry.getKey();
+            if (registration.isEventDispatchThread()) {
+                eventDispatchThreadListenerFound = true;
+            } else {
+                notifyListener(registration.getListener(), entry.getValue());
+            }
+        }
+        if (eventDispatchThreadListenerFound) {
+            EventQueue.invokeLater(new Runnable() {
 
-            for (ConfigPropertyChangeListener listener : listeners) {
-                for (Entry<Object, Object> addedProperty : addedProperties.entrySet()) {
-                    try {
-                        listener.propertyChanged((String) addedProperty.getKey(), (String) addedProperty.getValue());
-                    } catch (RuntimeException e) {
-                        Logger.error("Error during calling configuration change listener with parameters key='"
-                                + addedProperty.getKey() + "'; value='" + addedProperty.getValue() + "'", e);
+                @Override
+                public void run() {
+                    for (Entry<ListenerRegistration, Map<String, String>> entry : changesByListener.entrySet()) {
+                        ListenerRegistration registration = entry.getKey();
+                        if (registration.isEventDispatchThread()) {
+                            notifyListener(registration.getListener(), entry.getValue());
+                        }
                     }
                 }
-                for (Object droppedProperty : droppedProperties) {
-                    try {
-                        listener.propertyChanged((String) droppedProperty, null);
-                    } catch (RuntimeException e) {
-                        Logger.error("Error during calling configuration change listener with parameters key='"
-                                + droppedProperty + "'; value=null", e);
-                    }
+            });
+        }
+    }
+
+    /**
+     * Writes the current settings to the settings file.
+     */
+    public void persist() {
+        synchronized (persistLock) {
+            ConfigSnapshotImpl currentSnapshot = snapshot;
+            if (currentSnapshot.getVersion() == persistedSnapshot.getVersion()) {
+                return;
+            }
+            try {
+                if (!currentSnapshot.hasSameProperties(persistedSnapshot)) {
+                    writeSettingsFile(currentSnapshot.toProperties(), null);
+                }
+                persistedSnapshot = currentSnapshot;
+            } catch (IOException e) {
+                Logger.error("Error storing settings in file: " + settingsFile.getAbsolutePath(), e);
+            }
+        }
+    }
+
+    /**
+     * Queues changes for the listeners. The changes are delivered in the same round. If the listeners are not notified
+     * about the previous change of a key yet, only the new value will be passed to them.
+     */
+    private void queueChangeNotifications(final Map<String, String> changes) {
+        synchronized (pendingChanges) {
+            for (Entry<String, String> change : changes.entrySet()) {
+                pendingChanges.remove(change.getKey());
+                pendingChanges.put(change.getKey(), change.getValue());
+            }
+            if (!notificationScheduled) {
+                try {
+                    notificationExecutor.execute(notificationAction);
+                    notificationScheduled = true;
+                } catch (RejectedExecutionException e) {
+                    // The store is closed, nobody is interested in the change anymore
+                    pendingChanges.clear();
                 }
-                for (Entry<Object, Object> entry : modifiedProperties.entrySet()) {
+            }
+        }
+    }
+
+    /**
+     * Reads the settings file again and applies the changes that were made to it by others since the store last wrote
+     * or read it. The writes of the store itself are recognized as the file has the same content as the store wrote,
+     * so they do not cause any change.
+     */
+    void reloadSettingsFile() {
+        synchronized (persistLock) {
+            Properties properties = new Properties();
+            FileInputStream fin = null;
+            try {
+                fin = new FileInputStream(settingsFile);
+                properties.load(fin);
+            } catch (IOException e) {
+                Logger.error("Cannot reload settings file: " + settingsFile.getAbsolutePath(), e);
+                return;
+            } finally {
+                if (fin != null) {
                     try {
-                        listener.propertyChanged((String) entry.getKey(), (String) entry.getValue());
-                    } catch (RuntimeException e) {
-                        Logger.error(
-                                "Error during calling configuration change listener with parameters key='"
-                                        + entry.getKey() + "'; value='" + entry.getValue() + "'", e);
+                        fin.close();
+                    } catch (IOException e) {
+                        Logger.error("Error closing settings file after reloading: " + settingsFile.getAbsolutePath(),
+                                e);
                     }
                 }
             }
-            listenerReadLock.unlock();
 
-        } catch (IOException e) {
-            Logger.error("Error during importing settings from file " + file.toString(), e);
-        } finally {
-            writeLock.unlock();
+            ConfigSnapshotImpl fileSnapshot =
+                    ConfigSnapshotImpl.fromProperties(persistedSnapshot.getVersion(), properties);
+            Map<String, String> changes = persistedSnapshot.getChangesTo(fileSnapshot);
+            if (changes.isEmpty()) {
+                return;
+            }
+            Logger.info("Settings file changed, applying " + changes.size() + " change(s): "
+                    + settingsFile.getAbsolutePath());
+            // The changes that are not written yet are kept and they will be written into the new content
+            persistedSnapshot = fileSnapshot;
+            setProperties(changes);
         }
+    }
 
+    @Override
+    public void removePropertyChangeListener(final ConfigPropertyChangeListener listener) {
+        listenerIndex.remove(listener);
     }
 
-    public void persist() {
-        FileOutputStream fout = null;
-        try {
-            fout = new FileOutputStream(settingsFile);
-            properties.store(fout, null);
-        } catch (IOException e) {
-            Logger.error("Error storing settings in file: " + settingsFile.getAbsolutePath(), e);
-        } finally {
-            if (fout != null) {
-                try {
-                    fout.close();
-                } catch (IOException e) {
-                    Logger.error(
-                            "Error during closing settings file after storing it: " + settingsFile.getAbsolutePath(), e);
+    /**
+     * Writes the settings file or schedules writing it if the file is written behind the changes.
+     */
+    private void schedulePersist() {
+        synchronized (persistSchedulingLock) {
+            if ((persistExecutor != null) && !closed) {
+                if (!persistScheduled) {
+                    persistScheduled = true;
+                    persistExecutor.schedule(persistAction, persistDelayMillis, TimeUnit.MILLISECONDS);
                 }
+                return;
             }
         }
+        persist();
     }
 
     @Override
-    public void removePropertyChangeListener(final ConfigPropertyChangeListener listener) {
-        Lock writeLock = listenerLocker.writeLock();
-        writeLock.lock();
-        listeners.remove(listener);
-        writeLock.unlock();
+    public void setProperties(final Map<String, String> changes) {
+        synchronized (modificationLock) {
+            ConfigSnapshotImpl currentSnapshot = snapshot;
+            Map<String, String> properties = null;
+            Map<String, String> appliedChanges = new LinkedHashMap<String, String>();
+            for (Entry<String, String> change : changes.entrySet()) {
+                String key = change.getKey();
+                String value = change.getValue();
+                String currentValue = currentSnapshot.getProperty(key);
+                if ((value == null) ? (currentValue == null) : value.equals(currentValue)) {
+                    continue;
+                }
+                if (properties == null) {
+                    properties = currentSnapshot.copyProperties();
+                }
+                if (value == null) {
+                    properties.remove(key);
+                } else {
+                    properties.put(key, value);
+                }
+                appliedChanges.put(key, value);
+            }
+            if (properties == null) {
+                return;
+            }
+            snapshot = new ConfigSnapshotImpl(currentSnapshot.getVersion() + 1, properties);
+            // Queued while the lock is held, so the last notification of a key carries its current value
+            queueChangeNotifications(appliedChanges);
+        }
+        schedulePersist();
     }
 
     @Override
     public void setProperty(final String key, final String value) {
-        Lock propertiesWriteLock = propertiesLocker.writeLock();
-        propertiesWriteLock.lock();
-        properties.setProperty(key, value);
-
-        Lock listenerReadLock = listenerLocker.readLock();
-        persist();
-        listenerReadLock.lock();
-        Iterator<ConfigPropertyChangeListener> iterator = listeners.iterator();
-        try {
-            while (iterator.hasNext()) {
-                ConfigPropertyChangeListener listener = iterator.next();
-                listener.propertyChanged(key, value);
-            }
-        } finally {
-            listenerReadLock.unlock();
-            propertiesWriteLock.unlock();
+        if (value == null) {
+            throw new NullPointerException("Value of property '" + key + "' cannot be null");
         }
+        setProperties(Collections.singletonMap(key, value));
+    }
+
+    @Override
+    public ConfigSnapshot snapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Replaces the settings file with the properties, see {@link BundleUtil#storePropertiesAtomically}.
+     */
+    private void writeSettingsFile(final Properties propertiesToWrite, final String comment) throws IOException {
+        BundleUtil.storePropertiesAtomically(propertiesToWrite, comment, settingsFile);
     }
 }
@@ -0,0 +1,164 @@
+/**
+ * This file is part of Everit - OSGi Rich Console.
+ *
+ * Everit - OSGi Rich Console is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit - OSGi Rich Console is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit - OSGi Rich Console.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.dev.richconsole.internal;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.everit.osgi.dev.richconsole.internal.upgrade.UpgradeServiceImpl;
+
+/**
+ * Deploys the files that are dropped to the deployer window on one worker thread. The files that are dropped while a
+ * deployment is running are merged and deployed together in the next batch. The number of the waiting files is
+ * limited; the files of a drop that does not fit into the queue are rejected.
+ */
+class DeployQueue {
+
+    /**
+     * Notified when the state of the queue changes. The listener is called on the thread that changed the state.
+     */
+    public interface StateListener {
+
+        /**
+         * Called when files are queued or a batch is started or finished.
+         *
+         * @param queuedFileCount
+         *            The number of the files that wait for the next batch.
+         * @param deploying
+         *            Whether a batch is being deployed.
+         */
+        void stateChanged(int queuedFileCount, boolean deploying);
+    }
+
+    private class WorkerThread extends Thread {
+
+        public WorkerThread() {
+            super("richconsole-drop-deployer");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                List<File> batch;
+                synchronized (queuedFiles) {
+                    while (queuedFiles.isEmpty() && !closed) {
+                        try {
+                            queuedFiles.wait();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            return;
+                        }
+                    }
+                    if (closed) {
+                        return;
+                    }
+                    batch = new ArrayList<File>(queuedFiles);
+                    queuedFiles.clear();
+                    deploying = true;
+                }
+                fireStateChanged();
+                try {
+                    Logger.info("Deploying " + batch.size() + " dropped file(s)");
+                    upgradeService.deployBundles(batch);
+                } catch (RuntimeException e) {
+                    Logger.error("Error during deploying dropped files: " + batch.toString(), e);
+                } finally {
+                    synchronized (queuedFiles) {
+                        deploying = false;
+                    }
+                    fireStateChanged();
+                }
+            }
+        }
+    }
+
+    public static final int MAX_QUEUED_FILES = 256;
+
+    /**
+     * Guarded by {@link #queuedFiles}.
+     */
+    private boolean closed = false;
+
+    /**
+     * Guarded by {@link #queuedFiles}.
+     */
+    private boolean deploying = false;
+
+    private final Set<File> queuedFiles = new LinkedHashSet<File>();
+
+    private final StateListener stateListener;
+
+    private final UpgradeServiceImpl upgradeService;
+
+    public DeployQueue(final UpgradeServiceImpl upgradeService, final StateListener stateListener) {
+        this.upgradeService = upgradeService;
+        this.stateListener = stateListener;
+        new WorkerThread().start();
+    }
+
+    /**
+     * Stops the worker after the running batch. The files that are still queued are not deployed.
+     */
+    public void close() {
+        synchronized (queuedFiles) {
+            closed = true;
+            queuedFiles.clear();
+            queuedFiles.notifyAll();
+        }
+    }
+
+    private void fireStateChanged() {
+        int queuedFileCount;
+        boolean currentlyDeploying;
+        synchronized (queuedFiles) {
+            queuedFileCount = queuedFiles.size();
+            currentlyDeploying = deploying;
+        }
+        try {
+            stateListener.stateChanged(queuedFileCount, currentlyDeploying);
+        } catch (RuntimeException e) {
+            Logger.error("Error during notifying the listener of the deploy queue", e);
+        }
+    }
+
+    /**
+     * Queues the files of a drop. Files that are already queued are merged.
+     *
+     * @return Whether the files were queued. False if the queue is closed or the files do not fit into it.
+     */
+    public boolean offer(final List<File> files) {
+        synchronized (queuedFiles) {
+            if (closed) {
+                return false;
+            }
+            Set<File> newFiles = new LinkedHashSet<File>(files);
+            newFiles.removeAll(queuedFiles);
+            if ((queuedFiles.size() + newFiles.size()) > MAX_QUEUED_FILES) {
+                Logger.warn("Deploy queue is full, dropped files are rejected: " + files.toString());
+                return false;
+            }
+            queuedFiles.addAll(newFiles);
+            queuedFiles.notifyAll();
+        }
+        fireStateChanged();
+        return true;
+    }
+}
@@ -0,0 +1,121 @@
+/**
+ * This file is part of Everit - OSGi Rich Console.
+ *
+ * Everit - OSGi Rich Console is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit - OSGi Rich Console is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit - OSGi Rich Console.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.dev.richconsole.internal;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches the settings file and makes the config store reload it when it changes. The directory of the file is watched
+ * as the file is replaced by renaming when it is written. Changes are collected until no new change arrives for a short
+ * period, so an editor that writes the file in more steps causes only one reload.
+ */
+class SettingsFileWatcher implements Closeable {
+
+    private class WatcherThread extends Thread {
+
+        public WatcherThread() {
+            super("richconsole-settings-file-watcher");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            boolean changed = false;
+            try {
+                while (true) {
+                    WatchKey key;
+                    if (changed) {
+                        key = watchService.poll(QUIET_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+                    } else {
+                        key = watchService.take();
+                    }
+                    if (key == null) {
+                        changed = false;
+                        try {
+                            configStore.reloadSettingsFile();
+                        } catch (RuntimeException e) {
+                            Logger.error("Error during reloading settings file " + settingsFileName, e);
+                        }
+                    } else {
+                        changed |= handleWatchKey(key);
+                    }
+                }
+            } catch (ClosedWatchServiceException e) {
+                return;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * The time without new changes after the settings file is reloaded.
+     */
+    private static final long QUIET_PERIOD_MILLIS = 200;
+
+    private final ConfigStoreImpl configStore;
+
+    private final Path settingsFileName;
+
+    private final WatchService watchService;
+
+    public SettingsFileWatcher(final ConfigStoreImpl configStore, final File settingsFile) throws IOException {
+        this.configStore = configStore;
+        Path settingsFilePath = settingsFile.getAbsoluteFile().toPath();
+        settingsFileName = settingsFilePath.getFileName();
+        watchService = FileSystems.getDefault().newWatchService();
+        try {
+            settingsFilePath.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException e) {
+            watchService.close();
+            throw e;
+        }
+        new WatcherThread().start();
+    }
+
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+    }
+
+    /**
+     * Processes the events of the watched directory.
+     *
+     * @return Whether the settings file was among the changed files.
+     */
+    private boolean handleWatchKey(final WatchKey key) {
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if ((event.kind() == StandardWatchEventKinds.OVERFLOW) || settingsFileName.equals(event.context())) {
+                changed = true;
+            }
+        }
+        key.reset();
+        return changed;
+    }
+}
@@ -0,0 +1,331 @@
+/**
+ * This file is part of Everit - OSGi Rich Console.
+ *
+ * Everit - OSGi Rich Console is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit - OSGi Rich Console is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit - OSGi Rich Console.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.dev.richconsole.internal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Reads the symbolic name and the version of a bundle from a jar file without opening it as a
+ * {@link java.util.jar.JarFile}. The manifest entry is looked up from the end of central directory record, only that
+ * entry is read and inflated and the parsing of the manifest stops as soon as both headers are found. Zip64 archives
+ * and entries with an unsupported compression method are not handled; the caller should fall back to
+ * {@link java.util.jar.JarFile} in that case.
+ */
+public final class ZipManifestReader {
+
+    /**
+     * Reads the remaining bytes of a buffer.
+     */
+    private static class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        public ByteBufferInputStream(final ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            return buffer.get() & 0xFF;
+        }
+    }
+
+    /**
+     * Inflates raw deflate data lazily, so only the part of the manifest that is parsed is inflated.
+     */
+    private static class InflatingInputStream extends InputStream {
+
+        private final Inflater inflater = new Inflater(true);
+
+        private final byte[] inflated = new byte[INFLATE_BUFFER_SIZE];
+
+        private int inflatedLength = 0;
+
+        private int position = 0;
+
+        public InflatingInputStream(final byte[] compressedData) {
+            // Raw inflating needs an extra dummy byte after the compressed data
+            inflater.setInput(Arrays.copyOf(compressedData, compressedData.length + 1));
+        }
+
+        @Override
+        public void close() {
+            inflater.end();
+        }
+
+        @Override
+        public int read() throws IOException {
+            while (position == inflatedLength) {
+                if (inflater.finished() || inflater.needsInput()) {
+                    return -1;
+                }
+                try {
+                    inflatedLength = inflater.inflate(inflated);
+                } catch (DataFormatException e) {
+                    throw new ZipException("Invalid compressed manifest: " + e.getMessage());
+                }
+                position = 0;
+            }
+            return inflated[position++] & 0xFF;
+        }
+    }
+
+    private static final int CENTRAL_DIRECTORY_HEADER_SIGNATURE = 0x02014b50;
+
+    private static final int CENTRAL_DIRECTORY_HEADER_SIZE = 46;
+
+    private static final int COMPRESSION_DEFLATED = 8;
+
+    private static final int COMPRESSION_STORED = 0;
+
+    private static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+
+    private static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+
+    private static final int GENERAL_PURPOSE_FLAG_ENCRYPTED = 1;
+
+    private static final String HEADER_BUNDLE_SYMBOLIC_NAME = "Bundle-SymbolicName";
+
+    private static final String HEADER_BUNDLE_VERSION = "Bundle-Version";
+
+    private static final int INFLATE_BUFFER_SIZE = 1024;
+
+    private static final int LOCAL_FILE_HEADER_SIGNATURE = 0x04034b50;
+
+    private static final int LOCAL_FILE_HEADER_SIZE = 30;
+
+    private static final byte[] MANIFEST_NAME = "META-INF/MANIFEST.MF".getBytes(Charset.forName("US-ASCII"));
+
+    private static final int MAX_COMMENT_LENGTH = 0xFFFF;
+
+    private static final long ZIP64_MAGIC_VALUE = 0xFFFFFFFFL;
+
+    private static final String[] READ_HEADERS = new String[] { HEADER_BUNDLE_SYMBOLIC_NAME, HEADER_BUNDLE_VERSION };
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static boolean isManifestName(final ByteBuffer buffer, final int position, final int length) {
+        if (length != MANIFEST_NAME.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            byte b = buffer.get(position + i);
+            if ((b >= 'a') && (b <= 'z')) {
+                b = (byte) (b - ('a' - 'A'));
+            }
+            if (b != MANIFEST_NAME[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static InputStream openEntry(final FileChannel channel, final long localHeaderOffset,
+            final int compressedSize, final int method) throws IOException {
+        ByteBuffer localHeader = ByteBuffer.allocate(LOCAL_FILE_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, localHeader, localHeaderOffset);
+        if (localHeader.getInt(0) != LOCAL_FILE_HEADER_SIGNATURE) {
+            return null;
+        }
+        int nameLength = localHeader.getShort(26) & 0xFFFF;
+        int extraLength = localHeader.getShort(28) & 0xFFFF;
+        ByteBuffer data = ByteBuffer.allocate(compressedSize);
+        readFully(channel, data, localHeaderOffset + LOCAL_FILE_HEADER_SIZE + nameLength + extraLength);
+
+        if (method == COMPRESSION_STORED) {
+            return new ByteBufferInputStream(data);
+        }
+        return new InflatingInputStream(data.array());
+    }
+
+    /**
+     * Parses the main section of the manifest line by line until every header the reader is interested in is found.
+     * The bytes of the continuation lines are joined before decoding, so multi-byte characters that are split between
+     * lines are decoded correctly.
+     */
+    private static BundleData parseManifest(final File jarFile, final InputStream manifestStream) throws IOException {
+        Map<String, String> headers = new HashMap<String, String>();
+        ByteArrayOutputStream headerBuffer = new ByteArrayOutputStream();
+        boolean lineStart = true;
+        boolean endOfSection = false;
+        boolean previousCarriageReturn = false;
+        while (!endOfSection && (headers.size() < READ_HEADERS.length)) {
+            int b = manifestStream.read();
+            if ((b == '\n') && previousCarriageReturn) {
+                previousCarriageReturn = false;
+                continue;
+            }
+            previousCarriageReturn = (b == '\r');
+            boolean lineEnd = (b < 0) || (b == '\n') || (b == '\r');
+            if (lineStart) {
+                if (b == ' ') {
+                    // Continuation of the previous header
+                    lineStart = false;
+                    continue;
+                }
+                readHeader(headerBuffer, headers);
+                endOfSection = lineEnd;
+            } else if (b < 0) {
+                readHeader(headerBuffer, headers);
+                endOfSection = true;
+            }
+            if (!lineEnd) {
+                headerBuffer.write(b);
+            }
+            lineStart = lineEnd;
+        }
+        return new BundleData(jarFile, BundleUtil.extractSymbolicName(headers.get(HEADER_BUNDLE_SYMBOLIC_NAME)),
+                headers.get(HEADER_BUNDLE_VERSION));
+    }
+
+    /**
+     * Reads the symbolic name and the version of a bundle from its jar file.
+     *
+     * @param jarFile
+     *            The jar file of the bundle.
+     * @return The data of the bundle, where the symbolic name and the version are null if the jar has no manifest or
+     *         the manifest does not contain the headers. Null is returned if the format of the jar file is not supported
+     *         by this reader.
+     * @throws ZipException
+     *             if the file is not a zip file.
+     * @throws IOException
+     *             if the file cannot be read.
+     */
+    public static BundleData readBundleData(final File jarFile) throws IOException {
+        FileInputStream fin = new FileInputStream(jarFile);
+        try {
+            return readBundleData(jarFile, fin.getChannel());
+        } finally {
+            fin.close();
+        }
+    }
+
+    private static BundleData readBundleData(final File jarFile, final FileChannel channel) throws IOException {
+        long fileSize = channel.size();
+        if (fileSize < END_OF_CENTRAL_DIRECTORY_SIZE) {
+            throw new ZipException("File is too small to be a zip file: " + jarFile.getPath());
+        }
+
+        int tailSize = (int) Math.min(fileSize, END_OF_CENTRAL_DIRECTORY_SIZE + MAX_COMMENT_LENGTH);
+        ByteBuffer tail = ByteBuffer.allocate(tailSize).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, tail, fileSize - tailSize);
+        int eocdPosition = tailSize - END_OF_CENTRAL_DIRECTORY_SIZE;
+        while ((eocdPosition >= 0) && (tail.getInt(eocdPosition) != END_OF_CENTRAL_DIRECTORY_SIGNATURE)) {
+            eocdPosition--;
+        }
+        if (eocdPosition < 0) {
+            throw new ZipException("End of central directory record not found: " + jarFile.getPath());
+        }
+
+        long centralDirectorySize = tail.getInt(eocdPosition + 12) & ZIP64_MAGIC_VALUE;
+        long centralDirectoryOffset = tail.getInt(eocdPosition + 16) & ZIP64_MAGIC_VALUE;
+        if ((centralDirectoryOffset == ZIP64_MAGIC_VALUE) || (centralDirectorySize == ZIP64_MAGIC_VALUE)
+                || ((centralDirectoryOffset + centralDirectorySize) > fileSize)) {
+            return null;
+        }
+
+        ByteBuffer centralDirectory = ByteBuffer.allocate((int) centralDirectorySize).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, centralDirectory, centralDirectoryOffset);
+        int position = 0;
+        while ((position + CENTRAL_DIRECTORY_HEADER_SIZE) <= centralDirectory.limit()) {
+            if (centralDirectory.getInt(position) != CENTRAL_DIRECTORY_HEADER_SIGNATURE) {
+                return null;
+            }
+            int nameLength = centralDirectory.getShort(position + 28) & 0xFFFF;
+            int extraLength = centralDirectory.getShort(position + 30) & 0xFFFF;
+            int commentLength = centralDirectory.getShort(position + 32) & 0xFFFF;
+            if (isManifestName(centralDirectory, position + CENTRAL_DIRECTORY_HEADER_SIZE, nameLength)) {
+                int flags = centralDirectory.getShort(position + 8) & 0xFFFF;
+                int method = centralDirectory.getShort(position + 10) & 0xFFFF;
+                long compressedSize = centralDirectory.getInt(position + 20) & ZIP64_MAGIC_VALUE;
+                long localHeaderOffset = centralDirectory.getInt(position + 42) & ZIP64_MAGIC_VALUE;
+                if (((flags & GENERAL_PURPOSE_FLAG_ENCRYPTED) != 0) || (compressedSize == ZIP64_MAGIC_VALUE)
+                        || (localHeaderOffset == ZIP64_MAGIC_VALUE)
+                        || ((method != COMPRESSION_STORED) && (method != COMPRESSION_DEFLATED))) {
+                    return null;
+                }
+                InputStream manifestStream = openEntry(channel, localHeaderOffset, (int) compressedSize, method);
+                if (manifestStream == null) {
+                    return null;
+                }
+                try {
+                    return parseManifest(jarFile, manifestStream);
+                } finally {
+                    manifestStream.close();
+                }
+            }
+            position += CENTRAL_DIRECTORY_HEADER_SIZE + nameLength + extraLength + commentLength;
+        }
+        return new BundleData(jarFile, null, null);
+    }
+
+    private static void readFully(final FileChannel channel, final ByteBuffer buffer, final long position)
+            throws IOException {
+        long currentPosition = position;
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, currentPosition);
+            if (read < 0) {
+                throw new EOFException("Unexpected end of zip file");
+            }
+            currentPosition += read;
+        }
+        buffer.flip();
+    }
+
+    /**
+     * Stores the header collected in the buffer if it is one of the headers the reader is interested in.
+     */
+    private static void readHeader(final ByteArrayOutputStream headerBuffer, final Map<String, String> headers) {
+        if (headerBuffer.size() == 0) {
+            return;
+        }
+        String headerLine = new String(headerBuffer.toByteArray(), UTF8);
+        headerBuffer.reset();
+        int separatorIndex = headerLine.indexOf(':');
+        if (separatorIndex <= 0) {
+            return;
+        }
+        String name = headerLine.substring(0, separatorIndex);
+        for (String header : READ_HEADERS) {
+            if (header.equalsIgnoreCase(name)) {
+                headers.put(header, headerLine.substring(separatorIndex + 1).trim());
+                return;
+            }
+        }
+    }
+
+    private ZipManifestReader() {
+    }
+}
@@ -86,15 +86,13 @@ public class SettingsFrame extends JFrame {
         labelTextField = new JTextField();
         decorationPanel.add(labelTextField);
         labelTextField.setColumns(6);
-        configStore.addPropertyChangeListener(new ConfigPropertyChangeListener() {
+        configStore.addPropertyChangeListener(DEPLOYER_WINDOW_LABEL, new ConfigPropertyChangeListener() {
 
             @Override
             public void propertyChanged(final String key, final String value) {
-                if (key.equals(DEPLOYER_WINDOW_LABEL)) {
-                    labelTextField.setText(value);
-                }
+                labelTextField.setText(value);
             }
-        });
+        }, true);
         labelTextField.setText(configStore.getProperty(DEPLOYER_WINDOW_LABEL));
 
         JButton btnStore = new JButton("Apply");
@@ -0,0 +1,146 @@
+/**
+ * This file is part of Everit - OSGi Rich Console.
+ *
+ * Everit - OSGi Rich Console is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit - OSGi Rich Console is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit - OSGi Rich Console.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.dev.richconsole.internal.upgrade;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.everit.osgi.dev.richconsole.internal.BundleData;
+
+/**
+ * Caches the data read from the manifests of the bundles, so a location that is deployed again and again does not have
+ * to be parsed every time. The entries are keyed by the canonical path of the file the data was read from and they are
+ * valid only as long as the last modification time and the size of the file do not change. The least recently used
+ * entries are evicted when the cache is full. The cache is shared by the upgrade processes of the service.
+ */
+public class BundleDataCache {
+
+    private static class CacheEntry {
+
+        private final BundleData bundleData;
+
+        private final long lastModified;
+
+        private final long length;
+
+        public CacheEntry(final long lastModified, final long length, final BundleData bundleData) {
+            this.lastModified = lastModified;
+            this.length = length;
+            this.bundleData = bundleData;
+        }
+    }
+
+    public static final int DEFAULT_CAPACITY = 512;
+
+    private final Map<String, CacheEntry> entries;
+
+    private final AtomicLong hitCount = new AtomicLong();
+
+    private final AtomicLong missCount = new AtomicLong();
+
+    public BundleDataCache(final int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        entries = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, CacheEntry> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    private static String getCacheKey(final File file) {
+        try {
+            return file.getCanonicalPath();
+        } catch (IOException e) {
+            return file.getAbsolutePath();
+        }
+    }
+
+    /**
+     * Returns the cached data of a bundle.
+     *
+     * @param manifestSourceFile
+     *            The jar file or the manifest file the data was read from.
+     * @param lastModified
+     *            The last modification time of the file that was queried before reading it.
+     * @param length
+     *            The size of the file that was queried before reading it.
+     * @param locationFile
+     *            The file that should be returned by {@link BundleData#getEvaluatedLocationFile()}. The cached data is
+     *            copied if it was read via a different path of the same file.
+     * @return The data of the bundle or null if there is no valid entry for the file.
+     */
+    public BundleData get(final File manifestSourceFile, final long lastModified, final long length,
+            final File locationFile) {
+        String key = getCacheKey(manifestSourceFile);
+        CacheEntry entry;
+        synchronized (entries) {
+            entry = entries.get(key);
+        }
+        if ((entry == null) || (entry.lastModified != lastModified) || (entry.length != length)) {
+            missCount.incrementAndGet();
+            return null;
+        }
+        hitCount.incrementAndGet();
+        BundleData bundleData = entry.bundleData;
+        if (!bundleData.getEvaluatedLocationFile().equals(locationFile)) {
+            bundleData = new BundleData(locationFile, bundleData.getSymbolicName(), bundleData.getVersion());
+        }
+        return bundleData;
+    }
+
+    /**
+     * Stores the data of a bundle.
+     *
+     * @param manifestSourceFile
+     *            The jar file or the manifest file the data was read from.
+     * @param lastModified
+     *            The last modification time of the file that was queried before reading it. If the file changes while
+     *            it is read, the entry will not be valid for the next lookup.
+     * @param length
+     *            The size of the file that was queried before reading it.
+     * @param bundleData
+     *            The data that was read from the file.
+     */
+    public void put(final File manifestSourceFile, final long lastModified, final long length,
+            final BundleData bundleData) {
+        String key = getCacheKey(manifestSourceFile);
+        synchronized (entries) {
+            entries.put(key, new CacheEntry(lastModified, length, bundleData));
+        }
+    }
+
+    /**
+     * A one line summary of the cache that tells how much manifest parsing was spared.
+     */
+    public String summarize() {
+        int size;
+        synchronized (entries) {
+            size = entries.size();
+        }
+        return "Bundle manifest cache: " + hitCount.get() + " hits; " + missCount.get() + " misses; " + size
+                + " entries";
+    }
+}
@@ -0,0 +1,115 @@
+/**
+ * This file is part of Everit - OSGi Rich Console.
+ *
+ * Everit - OSGi Rich Console is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit - OSGi Rich Console is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit - OSGi Rich Console.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.dev.richconsole.internal.upgrade;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+
+/**
+ * A bundle location together with the start flag and start level it should be deployed with.
+ */
+public class BundleDeployment {
+
+    private static final String START_FLAG = "start";
+
+    /**
+     * Parses a deployment expression with the syntax [reference:]file:fileURI[@[2:][start]]. The expression is similar
+     * to the one that Equinox accepts via the osgi.bundles system property.
+     *
+     * @param expression
+     *            The expression to parse.
+     * @return The deployment.
+     * @throws IllegalArgumentException
+     *             if the syntax of the expression is invalid.
+     */
+    public static BundleDeployment parse(final String expression) {
+        String locationPart = expression.trim();
+        Integer startLevel = null;
+        boolean start = false;
+
+        int optionsIndex = locationPart.lastIndexOf('@');
+        if (optionsIndex >= 0) {
+            String options = locationPart.substring(optionsIndex + 1);
+            locationPart = locationPart.substring(0, optionsIndex);
+            int separatorIndex = options.indexOf(':');
+            String startLevelPart = null;
+            if (separatorIndex >= 0) {
+                startLevelPart = options.substring(0, separatorIndex);
+                if (!START_FLAG.equals(options.substring(separatorIndex + 1))) {
+                    throw new IllegalArgumentException("Invalid deployment options: " + expression);
+                }
+                start = true;
+            } else if (START_FLAG.equals(options)) {
+                start = true;
+            } else {
+                startLevelPart = options;
+            }
+            if (startLevelPart != null) {
+                try {
+                    startLevel = Integer.valueOf(startLevelPart);
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid start level in deployment: " + expression, e);
+                }
+            }
+        }
+
+        try {
+            return new BundleDeployment(new URI(locationPart), start, startLevel);
+        } catch (URISyntaxException e) {
+            throw new IllegalArgumentException("Invalid bundle location in deployment: " + expression, e);
+        }
+    }
+
+    private final URI bundleLocation;
+
+    private final boolean start;
+
+    private final Integer startLevel;
+
+    /**
+     * Constructor.
+     *
+     * @param bundleLocation
+     *            Location of a jar file or a maven project where target/classes contains every necessary entries.
+     * @param start
+     *            Whether to try calling start on the deployed bundle or not.
+     * @param startLevel
+     *            The new start level of the bundle or null to keep the original one.
+     */
+    public BundleDeployment(final URI bundleLocation, final boolean start, final Integer startLevel) {
+        this.bundleLocation = bundleLocation;
+        this.start = start;
+        this.startLevel = startLevel;
+    }
+
+    public URI getBundleLocation() {
+        return bundleLocation;
+    }
+
+    public Integer getStartLevel() {
+        return startLevel;
+    }
+
+    public boolean isStart() {
+        return start;
+    }
+
+    @Override
+    public String toString() {
+        return bundleLocation.toString();
+    }
+}
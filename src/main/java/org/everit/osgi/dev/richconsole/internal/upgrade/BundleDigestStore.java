@@ -0,0 +1,311 @@
+/**
+ * This file is part of Everit - OSGi Rich Console.
+ *
+ * Everit - OSGi Rich Console is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit - OSGi Rich Console is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit - OSGi Rich Console.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.dev.richconsole.internal.upgrade;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import org.everit.osgi.dev.richconsole.internal.BundleUtil;
+import org.everit.osgi.dev.richconsole.internal.Logger;
+
+/**
+ * Stores the digest of the content of the deployed bundles by their location, so a bundle that did not change since its
+ * last deployment does not have to be updated again. The digests of the files are cached by their last modification
+ * time and size, so only the modified files are read when the digest of a bundle is calculated. The least recently used
+ * file digests are evicted when the cache is full and the digests of a bundle are dropped when it is removed.
+ */
+class BundleDigestStore {
+
+    private static class FileDigest {
+
+        private final byte[] digest;
+
+        private final long lastModified;
+
+        private final long length;
+
+        public FileDigest(final long lastModified, final long length, final byte[] digest) {
+            this.lastModified = lastModified;
+            this.length = length;
+            this.digest = digest;
+        }
+    }
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private static final String DIGEST_ALGORITHM = "SHA-1";
+
+    private static final int FILE_DIGEST_CACHE_CAPACITY = 65536;
+
+    private static final char[] HEX_CHARS = "0123456789abcdef".toCharArray();
+
+    private static final String REFERENCE_LOCATION_PREFIX = "reference:";
+
+    private static final String STORE_FILE_COMMENT = "Digests of the bundles deployed by EOSGi Richconsole";
+
+    private final Properties digestsByLocation = new Properties();
+
+    private boolean dirty = false;
+
+    /**
+     * The digests of the files by their absolute path. Guarded by the instance of the map.
+     */
+    private final Map<String, FileDigest> fileDigestCache = new LinkedHashMap<String, FileDigest>(16, 0.75f, true) {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, FileDigest> eldest) {
+            return size() > FILE_DIGEST_CACHE_CAPACITY;
+        }
+    };
+
+    private final File storeFile;
+
+    /**
+     * Constructor.
+     *
+     * @param storeFile
+     *            The file where the digests are persisted or null if the digests should be kept only in memory.
+     */
+    public BundleDigestStore(final File storeFile) {
+        this.storeFile = storeFile;
+        if ((storeFile != null) && storeFile.exists()) {
+            FileInputStream fin = null;
+            try {
+                fin = new FileInputStream(storeFile);
+                digestsByLocation.load(fin);
+            } catch (IOException e) {
+                Logger.error("Cannot load bundle digests from file: " + storeFile.getAbsolutePath(), e);
+            } finally {
+                if (fin != null) {
+                    try {
+                        fin.close();
+                    } catch (IOException e) {
+                        Logger.error("Error closing bundle digest file: " + storeFile.getAbsolutePath(), e);
+                    }
+                }
+            }
+        }
+    }
+
+    private static String toHex(final byte[] bytes) {
+        char[] result = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            result[i * 2] = HEX_CHARS[(bytes[i] >> 4) & 0xF];
+            result[(i * 2) + 1] = HEX_CHARS[bytes[i] & 0xF];
+        }
+        return new String(result);
+    }
+
+    /**
+     * Converts a bundle location to the absolute path of the jar file or directory it points to.
+     *
+     * @return The path or null if the location does not point to a file.
+     */
+    private static String toLocationPath(final String location) {
+        String fileLocation = location;
+        if (fileLocation.startsWith(REFERENCE_LOCATION_PREFIX)) {
+            fileLocation = fileLocation.substring(REFERENCE_LOCATION_PREFIX.length());
+        }
+        try {
+            return new File(new URI(fileLocation)).getAbsolutePath();
+        } catch (URISyntaxException e) {
+            return null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Calculates the digest of a jar file or a directory tree.
+     *
+     * @param locationFile
+     *            The jar file or the directory that is the root of the bundle content.
+     * @return The digest in hexadecimal format.
+     * @throws IOException
+     *             if a file cannot be read.
+     */
+    public String calculateDigest(final File locationFile) throws IOException {
+        MessageDigest treeDigest = createMessageDigest();
+        if (locationFile.isDirectory()) {
+            digestDirectory(treeDigest, locationFile, "");
+        } else {
+            treeDigest.update(getFileDigest(locationFile));
+        }
+        return toHex(treeDigest.digest());
+    }
+
+    /**
+     * Calculates the digest of each file in a directory tree.
+     *
+     * @param directory
+     *            The root of the directory tree.
+     * @return The digests in hexadecimal format by the path of the files relative to the root. The relative paths
+     *         start with a slash.
+     * @throws IOException
+     *             if a file cannot be read.
+     */
+    public Map<String, String> calculateFileDigests(final File directory) throws IOException {
+        Map<String, String> result = new HashMap<String, String>();
+        collectFileDigests(result, directory, "");
+        return result;
+    }
+
+    private void collectFileDigests(final Map<String, String> result, final File directory,
+            final String relativePath) throws IOException {
+        File[] children = directory.listFiles();
+        if (children == null) {
+            throw new IOException("Cannot list the content of directory " + directory.getAbsolutePath());
+        }
+        for (File child : children) {
+            String childRelativePath = relativePath + "/" + child.getName();
+            if (child.isDirectory()) {
+                collectFileDigests(result, child, childRelativePath);
+            } else {
+                result.put(childRelativePath, toHex(getFileDigest(child)));
+            }
+        }
+    }
+
+    private MessageDigest createMessageDigest() {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(DIGEST_ALGORITHM + " algorithm is not available", e);
+        }
+    }
+
+    private void digestDirectory(final MessageDigest treeDigest, final File directory, final String relativePath)
+            throws IOException {
+        File[] children = directory.listFiles();
+        if (children == null) {
+            throw new IOException("Cannot list the content of directory " + directory.getAbsolutePath());
+        }
+        Arrays.sort(children);
+        for (File child : children) {
+            String childRelativePath = relativePath + "/" + child.getName();
+            treeDigest.update(childRelativePath.getBytes(Charset.forName("UTF-8")));
+            if (child.isDirectory()) {
+                digestDirectory(treeDigest, child, childRelativePath);
+            } else {
+                treeDigest.update(getFileDigest(child));
+            }
+        }
+    }
+
+    private byte[] getFileDigest(final File file) throws IOException {
+        String path = file.getAbsolutePath();
+        long lastModified = file.lastModified();
+        long length = file.length();
+        FileDigest cachedDigest;
+        synchronized (fileDigestCache) {
+            cachedDigest = fileDigestCache.get(path);
+        }
+        if ((cachedDigest != null) && (cachedDigest.lastModified == lastModified) && (cachedDigest.length == length)) {
+            return cachedDigest.digest;
+        }
+
+        MessageDigest messageDigest = createMessageDigest();
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read = in.read(buffer);
+            while (read >= 0) {
+                messageDigest.update(buffer, 0, read);
+                read = in.read(buffer);
+            }
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                Logger.error("Cannot close file after calculating its digest: " + path, e);
+            }
+        }
+        byte[] digest = messageDigest.digest();
+        synchronized (fileDigestCache) {
+            fileDigestCache.put(path, new FileDigest(lastModified, length, digest));
+        }
+        return digest;
+    }
+
+    /**
+     * Checks whether the bundle with the specified location was deployed with the same digest.
+     */
+    public synchronized boolean isUnchanged(final String location, final String digest) {
+        return digest.equals(digestsByLocation.getProperty(location));
+    }
+
+    /**
+     * Writes the digests to the store file if they changed since the last call. The store file is replaced atomically,
+     * so the store is not corrupted if the process dies during the write.
+     */
+    public synchronized void persist() {
+        if (!dirty || (storeFile == null)) {
+            return;
+        }
+        try {
+            BundleUtil.storePropertiesAtomically(digestsByLocation, STORE_FILE_COMMENT, storeFile);
+            dirty = false;
+        } catch (IOException e) {
+            Logger.error("Error storing bundle digests in file: " + storeFile.getAbsolutePath(), e);
+        }
+    }
+
+    public synchronized void put(final String location, final String digest) {
+        Object previousDigest = digestsByLocation.setProperty(location, digest);
+        if (!digest.equals(previousDigest)) {
+            dirty = true;
+        }
+    }
+
+    /**
+     * Removes the digest of a bundle and the cached digests of the files of the bundle.
+     */
+    public synchronized void remove(final String location) {
+        if (digestsByLocation.remove(location) != null) {
+            dirty = true;
+        }
+        String locationPath = toLocationPath(location);
+        if (locationPath == null) {
+            return;
+        }
+        String directoryPrefix = locationPath + File.separator;
+        synchronized (fileDigestCache) {
+            Iterator<String> iterator = fileDigestCache.keySet().iterator();
+            while (iterator.hasNext()) {
+                String path = iterator.next();
+                if (path.equals(locationPath) || path.startsWith(directoryPrefix)) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+}
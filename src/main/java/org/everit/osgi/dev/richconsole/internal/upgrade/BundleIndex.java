@@ -0,0 +1,182 @@
+/**
+ * This file is part of Everit - OSGi Rich Console.
+ *
+ * Everit - OSGi Rich Console is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit - OSGi Rich Console is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit - OSGi Rich Console.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.dev.richconsole.internal.upgrade;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Thread-safe index of the ids of the installed bundles by symbolic name, by symbolic name and version and by
+ * location. The values of the index are immutable arrays that are replaced on every modification, so lookups never
+ * block and never see a partially modified value.
+ */
+public class BundleIndex {
+
+    /**
+     * The keys a bundle is indexed with. They are stored so the bundle can be removed from the index even if its
+     * headers changed since it was added.
+     */
+    private static class IndexedBundle {
+
+        private final String location;
+
+        private final String symbolicName;
+
+        private final String symbolicNameAndVersion;
+
+        public IndexedBundle(final String symbolicName, final String symbolicNameAndVersion, final String location) {
+            this.symbolicName = symbolicName;
+            this.symbolicNameAndVersion = symbolicNameAndVersion;
+            this.location = location;
+        }
+    }
+
+    private static final long[] EMPTY_IDS = new long[0];
+
+    /**
+     * Returned by {@link #getBundleIdByLocation(String)} if there is no bundle with the location.
+     */
+    public static final long NO_BUNDLE_ID = -1;
+
+    private static void addId(final ConcurrentMap<String, long[]> index, final String key, final long bundleId) {
+        if (key == null) {
+            return;
+        }
+        boolean replaced = false;
+        while (!replaced) {
+            long[] ids = index.get(key);
+            if (ids == null) {
+                replaced = index.putIfAbsent(key, new long[] { bundleId }) == null;
+            } else if (indexOf(ids, bundleId) >= 0) {
+                replaced = true;
+            } else {
+                long[] newIds = new long[ids.length + 1];
+                System.arraycopy(ids, 0, newIds, 0, ids.length);
+                newIds[ids.length] = bundleId;
+                replaced = index.replace(key, ids, newIds);
+            }
+        }
+    }
+
+    private static String createSymbolicNameAndVersionKey(final String symbolicName, final String version) {
+        if ((symbolicName == null) || (version == null)) {
+            return null;
+        }
+        return symbolicName + ';' + version;
+    }
+
+    private static long[] getIds(final ConcurrentMap<String, long[]> index, final String key) {
+        if (key == null) {
+            return EMPTY_IDS;
+        }
+        long[] ids = index.get(key);
+        return (ids != null) ? ids : EMPTY_IDS;
+    }
+
+    private static int indexOf(final long[] ids, final long bundleId) {
+        for (int i = 0; i < ids.length; i++) {
+            if (ids[i] == bundleId) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static void removeId(final ConcurrentMap<String, long[]> index, final String key, final long bundleId) {
+        if (key == null) {
+            return;
+        }
+        boolean replaced = false;
+        while (!replaced) {
+            long[] ids = index.get(key);
+            int position = (ids != null) ? indexOf(ids, bundleId) : -1;
+            if (position < 0) {
+                replaced = true;
+            } else if (ids.length == 1) {
+                replaced = index.remove(key, ids);
+            } else {
+                long[] newIds = new long[ids.length - 1];
+                System.arraycopy(ids, 0, newIds, 0, position);
+                System.arraycopy(ids, position + 1, newIds, position, newIds.length - position);
+                replaced = index.replace(key, ids, newIds);
+            }
+        }
+    }
+
+    private final ConcurrentMap<String, long[]> idsByLocation = new ConcurrentHashMap<String, long[]>();
+
+    private final ConcurrentMap<String, long[]> idsBySymbolicName = new ConcurrentHashMap<String, long[]>();
+
+    private final ConcurrentMap<String, long[]> idsBySymbolicNameAndVersion =
+            new ConcurrentHashMap<String, long[]>();
+
+    private final ConcurrentMap<Long, IndexedBundle> indexedBundles = new ConcurrentHashMap<Long, IndexedBundle>();
+
+    /**
+     * Adds a bundle to the index or reindexes it if it is already in the index.
+     */
+    public void add(final long bundleId, final String symbolicName, final String version, final String location) {
+        IndexedBundle indexedBundle = new IndexedBundle(symbolicName,
+                createSymbolicNameAndVersionKey(symbolicName, version), location);
+        IndexedBundle previousIndexedBundle = indexedBundles.put(bundleId, indexedBundle);
+        if (previousIndexedBundle != null) {
+            removeKeys(bundleId, previousIndexedBundle);
+        }
+        addId(idsBySymbolicName, indexedBundle.symbolicName, bundleId);
+        addId(idsBySymbolicNameAndVersion, indexedBundle.symbolicNameAndVersion, bundleId);
+        addId(idsByLocation, indexedBundle.location, bundleId);
+    }
+
+    /**
+     * Returns the id of the bundle that is installed with the specified location or {@link #NO_BUNDLE_ID}.
+     */
+    public long getBundleIdByLocation(final String location) {
+        long[] ids = getIds(idsByLocation, location);
+        return (ids.length > 0) ? ids[0] : NO_BUNDLE_ID;
+    }
+
+    /**
+     * Returns the ids of the bundles with the specified symbolic name. The returned array must not be modified.
+     */
+    public long[] getBundleIdsBySymbolicName(final String symbolicName) {
+        return getIds(idsBySymbolicName, symbolicName);
+    }
+
+    /**
+     * Returns the ids of the bundles with the specified symbolic name and version. The returned array must not be
+     * modified.
+     */
+    public long[] getBundleIdsBySymbolicNameAndVersion(final String symbolicName, final String version) {
+        return getIds(idsBySymbolicNameAndVersion, createSymbolicNameAndVersionKey(symbolicName, version));
+    }
+
+    /**
+     * Removes a bundle from the index.
+     */
+    public void remove(final long bundleId) {
+        IndexedBundle indexedBundle = indexedBundles.remove(bundleId);
+        if (indexedBundle != null) {
+            removeKeys(bundleId, indexedBundle);
+        }
+    }
+
+    private void removeKeys(final long bundleId, final IndexedBundle indexedBundle) {
+        removeId(idsBySymbolicName, indexedBundle.symbolicName, bundleId);
+        removeId(idsBySymbolicNameAndVersion, indexedBundle.symbolicNameAndVersion, bundleId);
+        removeId(idsByLocation, indexedBundle.location, bundleId);
+    }
+}
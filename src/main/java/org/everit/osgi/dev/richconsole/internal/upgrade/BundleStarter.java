@@ -0,0 +1,249 @@
+/**
+ * This file is part of Everit - OSGi Rich Console.
+ *
+ * Everit - OSGi Rich Console is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit - OSGi Rich Console is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit - OSGi Rich Console.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.dev.richconsole.internal.upgrade;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.everit.osgi.dev.richconsole.internal.Logger;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleException;
+import org.osgi.framework.Constants;
+import org.osgi.framework.startlevel.BundleStartLevel;
+import org.osgi.framework.wiring.BundleWire;
+import org.osgi.framework.wiring.BundleWiring;
+
+/**
+ * Starts a set of bundles at the end of an upgrade. In serial mode the bundles are started one after the other in the
+ * specified order. In parallel mode the bundles are grouped by their start level and the groups are started in
+ * ascending order. Within a group a bundle is started as soon as every bundle it is wired to in the same group is
+ * started, so independent bundles are started concurrently.
+ */
+class BundleStarter {
+
+    /**
+     * Gets notified about the outcome of each bundle start. In parallel mode the listener is called from more threads
+     * at the same time.
+     */
+    public interface Listener {
+
+        void bundleStarted(Bundle bundle, long durationNanos);
+
+        void bundleStartFailed(Bundle bundle, BundleException cause, long durationNanos);
+    }
+
+    private final boolean parallel;
+
+    private final int threadCount;
+
+    public BundleStarter(final boolean parallel, final int threadCount) {
+        this.parallel = parallel;
+        this.threadCount = threadCount;
+    }
+
+    private static boolean isStartable(final Bundle bundle) {
+        int state = bundle.getState();
+        if ((state == Bundle.ACTIVE) || (state == Bundle.UNINSTALLED)) {
+            return false;
+        }
+        return bundle.getHeaders().get(Constants.FRAGMENT_HOST) == null;
+    }
+
+    /**
+     * Collects the bundles of the group that the specified bundle is wired to.
+     */
+    private static Set<Bundle> resolveProviders(final Bundle bundle, final Set<Bundle> group) {
+        Set<Bundle> providers = new HashSet<Bundle>();
+        BundleWiring bundleWiring = bundle.adapt(BundleWiring.class);
+        if (bundleWiring == null) {
+            return providers;
+        }
+        List<BundleWire> requiredWires = bundleWiring.getRequiredWires(null);
+        if (requiredWires == null) {
+            return providers;
+        }
+        for (BundleWire wire : requiredWires) {
+            Bundle provider = wire.getProviderWiring().getBundle();
+            if (!bundle.equals(provider) && group.contains(provider)) {
+                providers.add(provider);
+            }
+        }
+        return providers;
+    }
+
+    private void startBundle(final Bundle bundle, final int options, final Listener listener) {
+        long startNanos = System.nanoTime();
+        try {
+            bundle.start(options);
+            listener.bundleStarted(bundle, System.nanoTime() - startNanos);
+        } catch (BundleException e) {
+            Logger.error("Error during starting bundle " + bundle.toString(), e);
+            listener.bundleStartFailed(bundle, e, System.nanoTime() - startNanos);
+        } catch (RuntimeException e) {
+            Logger.error("Error during starting bundle " + bundle.toString(), e);
+            listener.bundleStartFailed(bundle, new BundleException("Unexpected error during start", e),
+                    System.nanoTime() - startNanos);
+        }
+    }
+
+    /**
+     * Starts the bundles. Fragments and bundles that are already active or uninstalled are skipped.
+     *
+     * @param bundles
+     *            The bundles to start. In serial mode they are started in the iteration order of the collection.
+     * @param options
+     *            The options that are passed to {@link Bundle#start(int)}.
+     * @param listener
+     *            The listener that is notified about the outcome of each start.
+     */
+    public void startBundles(final Collection<Bundle> bundles, final int options, final Listener listener) {
+        List<Bundle> bundlesToStart = new ArrayList<Bundle>();
+        for (Bundle bundle : bundles) {
+            if (isStartable(bundle)) {
+                bundlesToStart.add(bundle);
+            }
+        }
+        if (!parallel || (bundlesToStart.size() < 2)) {
+            for (Bundle bundle : bundlesToStart) {
+                startBundle(bundle, options, listener);
+            }
+            return;
+        }
+
+        SortedMap<Integer, List<Bundle>> bundlesByStartLevel = new TreeMap<Integer, List<Bundle>>();
+        for (Bundle bundle : bundlesToStart) {
+            Integer startLevel = bundle.adapt(BundleStartLevel.class).getStartLevel();
+            List<Bundle> group = bundlesByStartLevel.get(startLevel);
+            if (group == null) {
+                group = new ArrayList<Bundle>();
+                bundlesByStartLevel.put(startLevel, group);
+            }
+            group.add(bundle);
+        }
+
+        final AtomicInteger threadCounter = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(threadCount, bundlesToStart.size()),
+                new ThreadFactory() {
+
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        return new Thread(r, "richconsole-bundle-starter-" + threadCounter.incrementAndGet());
+                    }
+                });
+        try {
+            for (List<Bundle> group : bundlesByStartLevel.values()) {
+                startGroupInParallel(executor, group, options, listener);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private void startGroupInParallel(final ExecutorService executor, final List<Bundle> group, final int options,
+            final Listener listener) {
+        Set<Bundle> groupSet = new LinkedHashSet<Bundle>(group);
+        Map<Bundle, Set<Bundle>> pendingProviders = new HashMap<Bundle, Set<Bundle>>();
+        Map<Bundle, List<Bundle>> dependents = new HashMap<Bundle, List<Bundle>>();
+        List<Bundle> readyBundles = new ArrayList<Bundle>();
+        for (Bundle bundle : group) {
+            Set<Bundle> providers = resolveProviders(bundle, groupSet);
+            pendingProviders.put(bundle, providers);
+            if (providers.isEmpty()) {
+                readyBundles.add(bundle);
+            }
+            for (Bundle provider : providers) {
+                List<Bundle> providerDependents = dependents.get(provider);
+                if (providerDependents == null) {
+                    providerDependents = new ArrayList<Bundle>();
+                    dependents.put(provider, providerDependents);
+                }
+                providerDependents.add(bundle);
+            }
+        }
+
+        CompletionService<Bundle> completionService = new ExecutorCompletionService<Bundle>(executor);
+        int runningTasks = 0;
+        for (Bundle bundle : readyBundles) {
+            submitStart(completionService, bundle, options, listener);
+            runningTasks++;
+        }
+        while (runningTasks > 0) {
+            Bundle finishedBundle;
+            try {
+                finishedBundle = completionService.take().get();
+            } catch (InterruptedException e) {
+                Logger.error("Interrupted while waiting for bundles to start", e);
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                Logger.error("Unexpected error during starting bundles", e);
+                return;
+            }
+            runningTasks--;
+            pendingProviders.remove(finishedBundle);
+            List<Bundle> finishedBundleDependents = dependents.get(finishedBundle);
+            if (finishedBundleDependents != null) {
+                for (Bundle dependent : finishedBundleDependents) {
+                    Set<Bundle> dependentProviders = pendingProviders.get(dependent);
+                    dependentProviders.remove(finishedBundle);
+                    if (dependentProviders.isEmpty()) {
+                        submitStart(completionService, dependent, options, listener);
+                        runningTasks++;
+                    }
+                }
+            }
+        }
+
+        if (!pendingProviders.isEmpty()) {
+            // Bundles that are wired to each other in a cycle are started one by one in the original order
+            List<Bundle> cyclicBundles = new ArrayList<Bundle>(group);
+            cyclicBundles.retainAll(pendingProviders.keySet());
+            Logger.info("Starting bundles with cyclic wiring serially: " + cyclicBundles.toString());
+            for (Bundle bundle : cyclicBundles) {
+                startBundle(bundle, options, listener);
+            }
+        }
+    }
+
+    private void submitStart(final CompletionService<Bundle> completionService, final Bundle bundle,
+            final int options, final Listener listener) {
+        completionService.submit(new Callable<Bundle>() {
+
+            @Override
+            public Bundle call() {
+                startBundle(bundle, options, listener);
+                return bundle;
+            }
+        });
+    }
+}
@@ -0,0 +1,300 @@
+/**
+ * This file is part of Everit - OSGi Rich Console.
+ *
+ * Everit - OSGi Rich Console is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit - OSGi Rich Console is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit - OSGi Rich Console.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.dev.richconsole.internal.upgrade;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.instrument.ClassDefinition;
+import java.lang.instrument.Instrumentation;
+import java.lang.instrument.UnmodifiableClassException;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.everit.osgi.dev.richconsole.internal.Logger;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.wiring.BundleWiring;
+
+/**
+ * Redefines the loaded classes of a directory bundle in place if only class files changed since the bundle was
+ * deployed. This way the bundle does not have to be updated and refreshed when only method bodies are modified. The
+ * JVM refuses the redefinition if the schema of a class changed (e.g. a field or method was added); in that case the
+ * caller has to update the bundle as usual.
+ */
+class ClassRedefiner {
+
+    private static final String ATTACH_VIRTUAL_MACHINE_CLASS = "com.sun.tools.attach.VirtualMachine";
+
+    /**
+     * The system property that allows a JVM to attach an agent to itself from Java 9.
+     */
+    private static final String SYSPROP_ALLOW_ATTACH_SELF = "jdk.attach.allowAttachSelf";
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private static final String CLASS_FILE_EXTENSION = ".class";
+
+    /**
+     * Returns the instrumentation of the JVM. If the richconsole agent is not loaded yet, it tries to attach the jar of
+     * the console bundle to the running JVM as an agent.
+     *
+     * @param consoleBundle
+     *            The richconsole bundle.
+     * @return The instrumentation or null if it is not available.
+     */
+    public static Instrumentation acquireInstrumentation(final Bundle consoleBundle) {
+        Instrumentation instrumentation = getAgentInstrumentation();
+        if (instrumentation != null) {
+            return instrumentation;
+        }
+
+        File consoleJarFile = resolveLocationFile(consoleBundle.getLocation());
+        if ((consoleJarFile == null) || !consoleJarFile.isFile()) {
+            Logger.warn("Hot redefinition of classes is not available as the richconsole is not installed from a"
+                    + " jar file: " + consoleBundle.getLocation());
+            return null;
+        }
+        String javaAgentOption = "-javaagent:" + consoleJarFile.getAbsolutePath();
+        if (isSelfAttachRestricted()) {
+            Logger.warn("Hot redefinition of classes is not available as the JVM does not allow attaching an agent to"
+                    + " itself. Start the JVM with -D" + SYSPROP_ALLOW_ATTACH_SELF + "=true or " + javaAgentOption
+                    + " to enable it; changed bundles are updated until then");
+            return null;
+        }
+        try {
+            loadAgent(consoleJarFile);
+        } catch (Exception e) {
+            Logger.error("Cannot attach the richconsole agent to the JVM. Start the JVM with " + javaAgentOption
+                    + " to enable hot redefinition of classes", e);
+            return null;
+        }
+        return getAgentInstrumentation();
+    }
+
+    private static Instrumentation getAgentInstrumentation() {
+        try {
+            Class<?> agentClass = ClassLoader.getSystemClassLoader().loadClass(RedefinitionAgent.class.getName());
+            return (Instrumentation) agentClass.getMethod("getInstrumentation").invoke(null);
+        } catch (ClassNotFoundException e) {
+            return null;
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException(e);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        } catch (InvocationTargetException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * From Java 9 a JVM can attach an agent to itself only if it was started with the
+     * {@value #SYSPROP_ALLOW_ATTACH_SELF} system property set to true.
+     */
+    private static boolean isSelfAttachRestricted() {
+        String specificationVersion = System.getProperty("java.specification.version", "");
+        return !specificationVersion.startsWith("1.") && !Boolean.getBoolean(SYSPROP_ALLOW_ATTACH_SELF);
+    }
+
+    private static Class<?> loadAttachVirtualMachineClass() throws ClassNotFoundException, MalformedURLException {
+        try {
+            return ClassLoader.getSystemClassLoader().loadClass(ATTACH_VIRTUAL_MACHINE_CLASS);
+        } catch (ClassNotFoundException e) {
+            File toolsJar = new File(System.getProperty("java.home"), "../lib/tools.jar");
+            if (!toolsJar.exists()) {
+                throw e;
+            }
+            ClassLoader toolsClassLoader = new URLClassLoader(new URL[] { toolsJar.toURI().toURL() },
+                    ClassLoader.getSystemClassLoader());
+            return toolsClassLoader.loadClass(ATTACH_VIRTUAL_MACHINE_CLASS);
+        }
+    }
+
+    private static void loadAgent(final File agentJarFile) throws Exception {
+        String runtimeName = ManagementFactory.getRuntimeMXBean().getName();
+        String pid = runtimeName.substring(0, runtimeName.indexOf('@'));
+
+        Class<?> virtualMachineClass = loadAttachVirtualMachineClass();
+        Object virtualMachine = virtualMachineClass.getMethod("attach", String.class).invoke(null, pid);
+        try {
+            Method loadAgentMethod = virtualMachineClass.getMethod("loadAgent", String.class);
+            loadAgentMethod.invoke(virtualMachine, agentJarFile.getAbsolutePath());
+        } finally {
+            virtualMachineClass.getMethod("detach").invoke(virtualMachine);
+        }
+    }
+
+    private static byte[] readFile(final File file) throws IOException {
+        byte[] content = new byte[(int) file.length()];
+        InputStream in = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < content.length) {
+                int read = in.read(content, offset, Math.min(BUFFER_SIZE, content.length - offset));
+                if (read < 0) {
+                    throw new IOException("Unexpected end of file: " + file.getAbsolutePath());
+                }
+                offset += read;
+            }
+        } finally {
+            in.close();
+        }
+        return content;
+    }
+
+    private static File resolveLocationFile(final String location) {
+        String uriString = location;
+        if (uriString.startsWith("reference:")) {
+            uriString = uriString.substring("reference:".length());
+        }
+        if (!uriString.startsWith("file:")) {
+            return null;
+        }
+        try {
+            return new File(new URI(uriString));
+        } catch (URISyntaxException e) {
+            return null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private final BundleDigestStore bundleDigestStore;
+
+    /**
+     * The digests of the files of the directory bundles at the time they were deployed, stored by bundle location.
+     */
+    private final Map<String, Map<String, String>> deployedFileDigestsByLocation =
+            new ConcurrentHashMap<String, Map<String, String>>();
+
+    private final Instrumentation instrumentation;
+
+    public ClassRedefiner(final Instrumentation instrumentation, final BundleDigestStore bundleDigestStore) {
+        this.instrumentation = instrumentation;
+        this.bundleDigestStore = bundleDigestStore;
+    }
+
+    /**
+     * Forgets the deployed state of a bundle that is uninstalled.
+     */
+    public void forget(final String bundleLocation) {
+        deployedFileDigestsByLocation.remove(bundleLocation);
+    }
+
+    /**
+     * Remembers the content of a directory bundle that was deployed, so later changes can be compared to it.
+     */
+    public void recordDeployment(final String bundleLocation, final File root) {
+        try {
+            deployedFileDigestsByLocation.put(bundleLocation, bundleDigestStore.calculateFileDigests(root));
+        } catch (IOException e) {
+            Logger.error("Cannot calculate the digests of the files of bundle " + bundleLocation, e);
+            deployedFileDigestsByLocation.remove(bundleLocation);
+        }
+    }
+
+    /**
+     * Tries to apply the changes of a directory bundle by redefining its loaded classes.
+     *
+     * @param bundle
+     *            The bundle that is installed from the directory.
+     * @param root
+     *            The directory that holds the content of the bundle.
+     * @return true if the changes were applied, false if the bundle must be updated.
+     */
+    public boolean redefine(final Bundle bundle, final File root) {
+        String bundleLocation = bundle.getLocation();
+        Map<String, String> deployedFileDigests = deployedFileDigestsByLocation.get(bundleLocation);
+        if (deployedFileDigests == null) {
+            return false;
+        }
+        BundleWiring bundleWiring = bundle.adapt(BundleWiring.class);
+        ClassLoader bundleClassLoader = (bundleWiring != null) ? bundleWiring.getClassLoader() : null;
+        if (bundleClassLoader == null) {
+            return false;
+        }
+
+        Map<String, String> currentFileDigests;
+        try {
+            currentFileDigests = bundleDigestStore.calculateFileDigests(root);
+        } catch (IOException e) {
+            Logger.error("Cannot calculate the digests of the files of bundle " + bundleLocation, e);
+            return false;
+        }
+        if (!currentFileDigests.keySet().equals(deployedFileDigests.keySet())) {
+            return false;
+        }
+
+        Map<String, File> changedClassFiles = new HashMap<String, File>();
+        for (Entry<String, String> fileDigest : currentFileDigests.entrySet()) {
+            String relativePath = fileDigest.getKey();
+            if (!fileDigest.getValue().equals(deployedFileDigests.get(relativePath))) {
+                if (!relativePath.endsWith(CLASS_FILE_EXTENSION)) {
+                    return false;
+                }
+                String className = relativePath.substring(1, relativePath.length() - CLASS_FILE_EXTENSION.length())
+                        .replace('/', '.');
+                changedClassFiles.put(className, new File(root, relativePath));
+            }
+        }
+        if (changedClassFiles.isEmpty()) {
+            return false;
+        }
+
+        List<ClassDefinition> classDefinitions = new ArrayList<ClassDefinition>();
+        try {
+            for (Class<?> loadedClass : instrumentation.getInitiatedClasses(bundleClassLoader)) {
+                File classFile = changedClassFiles.get(loadedClass.getName());
+                if ((classFile != null) && (loadedClass.getClassLoader() == bundleClassLoader)) {
+                    classDefinitions.add(new ClassDefinition(loadedClass, readFile(classFile)));
+                }
+            }
+        } catch (IOException e) {
+            Logger.error("Cannot read the changed classes of bundle " + bundleLocation, e);
+            return false;
+        }
+
+        try {
+            instrumentation.redefineClasses(classDefinitions.toArray(new ClassDefinition[classDefinitions.size()]));
+        } catch (ClassNotFoundException e) {
+            return false;
+        } catch (UnmodifiableClassException e) {
+            return false;
+        } catch (UnsupportedOperationException e) {
+            Logger.info("Classes of bundle " + bundle.toString() + " cannot be redefined: " + e.getMessage());
+            return false;
+        } catch (LinkageError e) {
+            Logger.info("Classes of bundle " + bundle.toString() + " cannot be redefined: " + e.toString());
+            return false;
+        }
+        Logger.info("Redefined " + classDefinitions.size() + " loaded class(es) of bundle " + bundle.toString());
+        deployedFileDigestsByLocation.put(bundleLocation, currentFileDigests);
+        return true;
+    }
+}
@@ -0,0 +1,249 @@
+/**
+ * This file is part of Everit - OSGi Rich Console.
+ *
+ * Everit - OSGi Rich Console is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit - OSGi Rich Console is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit - OSGi Rich Console.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.dev.richconsole.internal.upgrade;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.everit.osgi.dev.richconsole.internal.Logger;
+
+/**
+ * Watches the content of the deployed directory bundles (target/classes folders) and redeploys them when they change.
+ * Changes are collected until no new change arrives for a short period, so a compiler that writes many files causes
+ * only one redeployment. The bundles that changed during the same period are redeployed in one upgrade process.
+ */
+class DirectoryBundleWatcher implements Closeable {
+
+    /**
+     * A watched directory bundle.
+     */
+    private static class WatchedBundle {
+
+        private final URI deployLocation;
+
+        private final Path root;
+
+        private volatile boolean start;
+
+        public WatchedBundle(final URI deployLocation, final Path root, final boolean start) {
+            this.deployLocation = deployLocation;
+            this.root = root;
+            this.start = start;
+        }
+    }
+
+    private class WatcherThread extends Thread {
+
+        public WatcherThread() {
+            super("richconsole-directory-bundle-watcher");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            Set<WatchedBundle> changedBundles = new LinkedHashSet<WatchedBundle>();
+            try {
+                while (true) {
+                    WatchKey key;
+                    if (changedBundles.isEmpty()) {
+                        key = watchService.take();
+                    } else {
+                        key = watchService.poll(QUIET_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+                    }
+                    if (key == null) {
+                        redeploy(changedBundles);
+                        changedBundles.clear();
+                    } else {
+                        handleWatchKey(key, changedBundles);
+                    }
+                }
+            } catch (ClosedWatchServiceException e) {
+                return;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * The time without new changes after the changed bundles are redeployed.
+     */
+    private static final long QUIET_PERIOD_MILLIS = 500;
+
+    private final Map<WatchKey, WatchedBundle> bundlesByWatchKey = new ConcurrentHashMap<WatchKey, WatchedBundle>();
+
+    private final UpgradeServiceImpl upgradeService;
+
+    private final Map<String, WatchedBundle> watchedBundlesByLocation =
+            new ConcurrentHashMap<String, WatchedBundle>();
+
+    private final WatchService watchService;
+
+    public DirectoryBundleWatcher(final UpgradeServiceImpl upgradeService) throws IOException {
+        this.upgradeService = upgradeService;
+        watchService = FileSystems.getDefault().newWatchService();
+        new WatcherThread().start();
+    }
+
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+    }
+
+    private void handleWatchKey(final WatchKey key, final Collection<WatchedBundle> changedBundles) {
+        WatchedBundle watchedBundle = bundlesByWatchKey.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if ((watchedBundle != null) && (event.kind() == StandardWatchEventKinds.ENTRY_CREATE)) {
+                Path createdPath = ((Path) key.watchable()).resolve((Path) event.context());
+                if (Files.isDirectory(createdPath, LinkOption.NOFOLLOW_LINKS)) {
+                    registerRecursively(createdPath, watchedBundle);
+                }
+            }
+        }
+        if (!key.reset()) {
+            bundlesByWatchKey.remove(key);
+        }
+        if ((watchedBundle != null) && watchedBundlesByLocation.containsValue(watchedBundle)) {
+            changedBundles.add(watchedBundle);
+        }
+    }
+
+    /**
+     * Checks whether the root directory of the bundle is still watched. The watch keys of a directory become invalid if
+     * the directory is deleted, e.g. by mvn clean.
+     */
+    private boolean isRootWatched(final WatchedBundle watchedBundle) {
+        for (Map.Entry<WatchKey, WatchedBundle> entry : bundlesByWatchKey.entrySet()) {
+            WatchKey key = entry.getKey();
+            if ((entry.getValue() == watchedBundle) && key.isValid() && watchedBundle.root.equals(key.watchable())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void redeploy(final Collection<WatchedBundle> changedBundles) {
+        Logger.info("Redeploying " + changedBundles.size() + " changed directory bundle(s)");
+        UpgradeProcess upgradeProcess;
+        try {
+            upgradeProcess = upgradeService.newUpgradeProcess();
+        } catch (IllegalStateException e) {
+            Logger.warn("Changed directory bundles are not redeployed: " + e.getMessage());
+            return;
+        }
+        try {
+            List<BundleDeployment> deployments = new ArrayList<BundleDeployment>(changedBundles.size());
+            for (WatchedBundle watchedBundle : changedBundles) {
+                if (Files.isDirectory(watchedBundle.root)) {
+                    deployments.add(new BundleDeployment(watchedBundle.deployLocation, watchedBundle.start, null));
+                }
+            }
+            upgradeProcess.deployBundles(deployments);
+        } catch (RuntimeException e) {
+            Logger.error("Error during redeploying changed directory bundles", e);
+        } finally {
+            upgradeProcess.finish();
+        }
+    }
+
+    private void registerRecursively(final Path directory, final WatchedBundle watchedBundle) {
+        try {
+            Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+
+                @Override
+                public FileVisitResult preVisitDirectory(final Path dir, final BasicFileAttributes attrs)
+                        throws IOException {
+                    WatchKey key = dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                            StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+                    bundlesByWatchKey.put(key, watchedBundle);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (ClosedWatchServiceException e) {
+            return;
+        } catch (IOException e) {
+            Logger.error("Cannot watch directory " + directory.toString(), e);
+        }
+    }
+
+    /**
+     * Stops watching the directory bundle that is installed with the specified location.
+     */
+    public void unwatch(final String bundleLocation) {
+        WatchedBundle watchedBundle = watchedBundlesByLocation.remove(bundleLocation);
+        if (watchedBundle == null) {
+            return;
+        }
+        for (Map.Entry<WatchKey, WatchedBundle> entry : bundlesByWatchKey.entrySet()) {
+            if (entry.getValue() == watchedBundle) {
+                entry.getKey().cancel();
+                bundlesByWatchKey.remove(entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * Starts watching a deployed directory bundle if it is not watched yet. If the directory of the bundle was deleted
+     * and created again since it was deployed, it is registered again.
+     *
+     * @param bundleLocation
+     *            The location the bundle is installed with.
+     * @param deployLocation
+     *            The location the bundle was deployed from. This is used when the bundle is redeployed.
+     * @param root
+     *            The directory that holds the content of the bundle.
+     * @param start
+     *            Whether the bundle should be started after a redeployment.
+     */
+    public void watch(final String bundleLocation, final URI deployLocation, final File root, final boolean start) {
+        WatchedBundle watchedBundle = watchedBundlesByLocation.get(bundleLocation);
+        if (watchedBundle != null) {
+            watchedBundle.start = start;
+            if (!isRootWatched(watchedBundle)) {
+                Logger.info("Watching recreated directory bundle for changes: " + root.getAbsolutePath());
+                registerRecursively(watchedBundle.root, watchedBundle);
+            }
+            return;
+        }
+        watchedBundle = new WatchedBundle(deployLocation, root.toPath(), start);
+        watchedBundlesByLocation.put(bundleLocation, watchedBundle);
+        Logger.info("Watching directory bundle for changes: " + root.getAbsolutePath());
+        registerRecursively(watchedBundle.root, watchedBundle);
+    }
+}
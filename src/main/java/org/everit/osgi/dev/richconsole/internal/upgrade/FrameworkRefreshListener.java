@@ -33,6 +33,8 @@ class FrameworkRefreshListener implements FrameworkListener {
 
     private final Lock refreshFinishLock;
 
+    private volatile boolean successful = false;
+
     public FrameworkRefreshListener(final AtomicBoolean refreshFinished, final Lock refreshFinishLock,
             final Condition refreshFinishCondition) {
         this.refreshFinished = refreshFinished;
@@ -46,6 +48,7 @@ class FrameworkRefreshListener implements FrameworkListener {
         if ((eventType == FrameworkEvent.ERROR) || (eventType == FrameworkEvent.PACKAGES_REFRESHED)) {
             refreshFinishLock.lock();
             try {
+                successful = (eventType == FrameworkEvent.PACKAGES_REFRESHED);
                 refreshFinished.set(true);
                 Logger.info("Framework refresh finished with code "
                         + BundleUtil.convertFrameworkEventTypeCode(eventType));
@@ -81,4 +84,11 @@ class FrameworkRefreshListener implements FrameworkListener {
     public Lock getRefreshFinishLock() {
         return refreshFinishLock;
     }
+
+    /**
+     * Whether the refresh finished without an error. Only meaningful after the refresh finished.
+     */
+    public boolean isSuccessful() {
+        return successful;
+    }
 }
@@ -0,0 +1,45 @@
+/**
+ * This file is part of Everit - OSGi Rich Console.
+ *
+ * Everit - OSGi Rich Console is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit - OSGi Rich Console is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit - OSGi Rich Console.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.dev.richconsole.internal.upgrade;
+
+import java.lang.instrument.Instrumentation;
+
+/**
+ * Java agent that makes the {@link Instrumentation} of the JVM available for the hot redefinition of classes. The
+ * richconsole jar can be passed to the JVM with the -javaagent option or it is attached to the running JVM when the
+ * hot redefinition is enabled. In both cases this class is loaded by the system class loader, so the bundle accesses
+ * it via reflection.
+ */
+public final class RedefinitionAgent {
+
+    private static volatile Instrumentation instrumentation;
+
+    public static void agentmain(final String agentArgs, final Instrumentation inst) {
+        instrumentation = inst;
+    }
+
+    public static Instrumentation getInstrumentation() {
+        return instrumentation;
+    }
+
+    public static void premain(final String agentArgs, final Instrumentation inst) {
+        instrumentation = inst;
+    }
+
+    private RedefinitionAgent() {
+    }
+}
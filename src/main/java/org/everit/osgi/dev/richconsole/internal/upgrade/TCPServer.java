@@ -17,58 +17,659 @@
 package org.everit.osgi.dev.richconsole.internal.upgrade;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.ProtocolFamily;
 import java.net.SocketAddress;
-import java.net.URI;
-import java.net.URISyntaxException;
+import java.net.StandardProtocolFamily;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.everit.osgi.dev.richconsole.RichConsoleConstants;
 import org.everit.osgi.dev.richconsole.internal.Logger;
+import org.osgi.framework.Bundle;
 
+/**
+ * Non-blocking server of the upgrade commands. A single selector thread accepts the connections and splits the
+ * incoming bytes into command lines. The commands of a connection are processed on a bounded worker pool, so a slow
+ * deployment does not block the other clients. The server listens either on a TCP port or on a Unix domain socket with
+ * the same protocol. With the first version of the protocol the commands of a connection are processed in order.
+ * After the client switches to the second version, the commands are tagged with ids, the independent ones are
+ * processed concurrently and the responses are sent in the order the commands complete.
+ */
 public class TCPServer implements Closeable {
 
+    /**
+     * A command line received from a client. The id is null if the session uses the first version of the protocol.
+     */
+    private static class Command {
+
+        /**
+         * The lines that follow the command line and belong to the command, e.g. the locations of a batch deployment.
+         */
+        private final List<String> block = new ArrayList<String>();
+
+        private final String id;
+
+        private final String line;
+
+        private final String name;
+
+        public Command(final String id, final String line) {
+            this.id = id;
+            this.line = line;
+            int separatorIndex = line.indexOf(' ');
+            name = (separatorIndex < 0) ? line : line.substring(0, separatorIndex);
+        }
+
+        public String getArguments() {
+            return line.substring(name.length()).trim();
+        }
+    }
+
+    /**
+     * Executes one command of a session on a worker thread.
+     */
+    private class CommandTask implements Runnable {
+
+        private final boolean barrier;
+
+        private final Command command;
+
+        private final Session session;
+
+        public CommandTask(final Session session, final Command command, final boolean barrier) {
+            this.session = session;
+            this.command = command;
+            this.barrier = barrier;
+        }
+
+        @Override
+        public void run() {
+            try {
+                handleCommand(session, command);
+            } finally {
+                session.commandFinished(barrier);
+            }
+        }
+    }
+
     private class ServerThread extends Thread {
+
+        public ServerThread() {
+            super("richconsole-upgrade-server");
+        }
+
         @Override
         public void run() {
-            while (!stopped.get()) {
-                Socket socket = null;
+            try {
+                while (!stopped.get()) {
+                    selector.select();
+                    processSessionChanges();
+                    Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                    while (iterator.hasNext()) {
+                        SelectionKey key = iterator.next();
+                        iterator.remove();
+                        handleSelectedKey(key);
+                    }
+                }
+            } catch (IOException e) {
+                if (!stopped.get()) {
+                    Logger.error("Error in deployment server, stopping", e);
+                }
+            } finally {
+                stopServer();
+            }
+        }
+    }
+
+    /**
+     * State of one client connection. The command queue and the scheduling state are guarded by the session instance.
+     * With the first version of the protocol the commands are executed one after the other. With the second version
+     * the commands that do not depend on the previous ones are executed concurrently and a command that depends on
+     * them (a barrier) waits until the previous ones finish.
+     */
+    private class Session implements UpgradeProgressListener {
+
+        /**
+         * Whether the session was dropped before the client closed its output. The commands that arrive afterwards are
+         * ignored.
+         */
+        private boolean aborted = false;
+
+        private boolean barrierRunning = false;
+
+        private final SocketChannel channel;
+
+        private boolean endOfInput = false;
+
+        private volatile boolean finished = false;
+
+        private boolean finishing = false;
+
+        private final ByteArrayOutputStream lineBuffer = new ByteArrayOutputStream();
+
+        private final Queue<String> pendingCommands = new LinkedList<String>();
+
+        private final Queue<ByteBuffer> pendingResponses = new ConcurrentLinkedQueue<ByteBuffer>();
+
+        private volatile int protocolVersion = PROTOCOL_VERSION_1;
+
+        /**
+         * Whether the selector stopped reading the connection as too many command lines are pending.
+         */
+        private boolean readSuspended = false;
+
+        private int runningCommandCount = 0;
+
+        private boolean streamProgress = false;
+
+        private UpgradeProcess upgradeProcess = null;
+
+        public Session(final SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * Drops the commands of the session that did not start yet. The upgrade process of the session is finished as
+         * soon as the running commands finish, so the bundles it stopped are started again.
+         */
+        private synchronized void abort() {
+            if (aborted || finishing) {
+                return;
+            }
+            dropPendingCommands();
+            dispatchCommands();
+        }
+
+        /**
+         * Drops the session as the client sent a command line that is longer than the limit.
+         */
+        private synchronized void commandLineTooLong() {
+            lineBuffer.reset();
+            if (aborted || finishing) {
+                return;
+            }
+            writeUntagged(RichConsoleConstants.TCPRESPONSE_FAILED + " command line is longer than "
+                    + MAX_COMMAND_LINE_LENGTH + " bytes, connection dropped");
+            abort();
+        }
+
+        private synchronized void commandFinished(final boolean barrier) {
+            runningCommandCount--;
+            if (barrier) {
+                barrierRunning = false;
+            }
+            dispatchCommands();
+        }
+
+        private synchronized void commandReceived(final String line) {
+            if (aborted) {
+                return;
+            }
+            pendingCommands.add(line);
+            dispatchCommands();
+        }
+
+        /**
+         * Hands over the pending commands to the worker pool as far as their dependencies allow it. When the input of
+         * the connection is closed and every command finished, the upgrade process of the session is finished.
+         */
+        private void dispatchCommands() {
+            if (finished) {
+                return;
+            }
+            startPendingCommands();
+            if (readSuspended && (pendingCommands.size() < MAX_PENDING_LINES_PER_SESSION)) {
+                readSuspended = false;
+                requestSessionUpdate(this);
+            }
+            if (endOfInput && pendingCommands.isEmpty() && (runningCommandCount == 0) && !finishing) {
+                finishing = true;
+                Runnable finishTask = new Runnable() {
+
+                    @Override
+                    public void run() {
+                        finishUpgradeProcess();
+                    }
+                };
                 try {
-                    socket = serverSocket.accept();
-                } catch (IOException e) {
-                    if (!stopped.get()) {
-                        Logger.error("Error in deployment server, stopping", e);
-                        stopServer();
+                    workerExecutor.execute(finishTask);
+                } catch (RejectedExecutionException e) {
+                    new Thread(finishTask, "richconsole-upgrade-finisher").start();
+                }
+            }
+        }
+
+        private void dropPendingCommands() {
+            aborted = true;
+            pendingCommands.clear();
+            endOfInput = true;
+        }
+
+        private synchronized void enableProgressStream() {
+            streamProgress = true;
+            if (upgradeProcess != null) {
+                upgradeProcess.setProgressListener(this);
+            }
+        }
+
+        private synchronized void endOfInputReached() {
+            if (lineBuffer.size() > 0) {
+                pendingCommands.add(decodeLine(lineBuffer));
+            }
+            endOfInput = true;
+            dispatchCommands();
+        }
+
+        private void finishUpgradeProcess() {
+            try {
+                UpgradeResult result = null;
+                if (upgradeProcess != null) {
+                    result = upgradeProcess.finish();
+                }
+                if (streamProgress) {
+                    writeFinalStatus(result);
+                }
+            } catch (RuntimeException e) {
+                Logger.error("Error during finishing upgrade process", e);
+            } finally {
+                upgradeProcess = null;
+                finished = true;
+                requestSessionUpdate(this);
+            }
+        }
+
+        synchronized UpgradeProcess getOrCreateUpgradeProcess() {
+            if (upgradeProcess == null) {
+                upgradeProcess = upgradeService.newUpgradeProcess();
+                if (streamProgress) {
+                    upgradeProcess.setProgressListener(this);
+                }
+            }
+            return upgradeProcess;
+        }
+
+        private Command parseCommand(final String line) {
+            if (protocolVersion == PROTOCOL_VERSION_1) {
+                return new Command(null, line);
+            }
+            int separatorIndex = line.indexOf(' ');
+            if (separatorIndex < 0) {
+                return new Command(line, "");
+            }
+            return new Command(line.substring(0, separatorIndex), line.substring(separatorIndex + 1));
+        }
+
+        /**
+         * Whether the selector should read more command lines from the connection.
+         */
+        private synchronized boolean isReadable() {
+            return !endOfInput && !readSuspended;
+        }
+
+        @Override
+        public void phaseFinished(final UpgradePhaseEvent phaseEvent) {
+            StringBuilder sb = new StringBuilder(RichConsoleConstants.TCPRESPONSE_PROGRESS).append(' ')
+                    .append(phaseEvent.getPhase()).append(' ');
+            if (phaseEvent.getSymbolicName() != null) {
+                sb.append(phaseEvent.getSymbolicName()).append(':').append(phaseEvent.getVersion());
+            } else {
+                sb.append('-');
+            }
+            sb.append(' ').append(toStatus(phaseEvent.isSuccessful())).append(' ')
+                    .append(phaseEvent.getDurationNanos() / UpgradePhaseEvent.NANOS_PER_MILLI);
+            writeUntagged(sb.toString());
+        }
+
+        void respond(final Command command, final String response) {
+            if (command.id == null) {
+                write(response);
+            } else {
+                write(command.id + " " + response);
+            }
+        }
+
+        /**
+         * Hands over the commands at the head of the queue to the worker pool until a command has to wait for the
+         * previous ones or for the lines of its block.
+         */
+        private void startPendingCommands() {
+            String line = pendingCommands.peek();
+            while ((line != null) && !barrierRunning) {
+                Command command = parseCommand(line);
+                int blockSize = getBlockSize(command);
+                if ((pendingCommands.size() <= blockSize) && !endOfInput && (blockSize <= MAX_BATCH_SIZE)) {
+                    return;
+                }
+                if (blockSize > MAX_BATCH_SIZE) {
+                    respond(command, RichConsoleConstants.TCPRESPONSE_FAILED + " batch is larger than "
+                            + MAX_BATCH_SIZE + " bundles, connection dropped");
+                    dropPendingCommands();
+                } else if (RichConsoleConstants.TCPCOMMAND_PROTOCOL.equals(command.name)) {
+                    if (runningCommandCount > 0) {
+                        return;
+                    }
+                    pendingCommands.poll();
+                    switchProtocol(command);
+                } else {
+                    boolean barrier = (protocolVersion == PROTOCOL_VERSION_1) || isBarrier(command);
+                    if ((runningCommandCount > 0)
+                            && (barrier || (runningCommandCount >= MAX_CONCURRENT_COMMANDS_PER_SESSION))) {
+                        return;
+                    }
+                    pendingCommands.poll();
+                    for (int i = 0; (i < blockSize) && !pendingCommands.isEmpty(); i++) {
+                        command.block.add(pendingCommands.poll());
+                    }
+                    runningCommandCount++;
+                    barrierRunning = barrier;
+                    try {
+                        workerExecutor.execute(new CommandTask(this, command, barrier));
+                    } catch (RejectedExecutionException e) {
+                        Logger.error("Deployment server is overloaded or stopped, dropping connection", e);
+                        runningCommandCount--;
+                        barrierRunning = false;
+                        respond(command, RichConsoleConstants.TCPRESPONSE_FAILED
+                                + " deployment server is overloaded, connection dropped");
+                        dropPendingCommands();
                     }
                 }
-                if (socket != null) {
-                    handleIncomingSocket(socket);
+                line = pendingCommands.peek();
+            }
+        }
+
+        /**
+         * Stops reading the connection if too many command lines are pending. The reading is resumed when the pending
+         * commands are dispatched.
+         *
+         * @return Whether the reading is suspended.
+         */
+        private synchronized boolean suspendReadIfFull() {
+            if (pendingCommands.size() >= MAX_PENDING_LINES_PER_SESSION) {
+                readSuspended = true;
+            }
+            return readSuspended;
+        }
+
+        private void switchProtocol(final Command command) {
+            String requestedVersion = command.getArguments();
+            if (String.valueOf(PROTOCOL_VERSION_2).equals(requestedVersion)) {
+                protocolVersion = PROTOCOL_VERSION_2;
+                respond(command, RichConsoleConstants.TCPRESPONSE_OK);
+            } else if (String.valueOf(PROTOCOL_VERSION_1).equals(requestedVersion)) {
+                protocolVersion = PROTOCOL_VERSION_1;
+                respond(command, RichConsoleConstants.TCPRESPONSE_OK);
+            } else {
+                respond(command, RichConsoleConstants.TCPRESPONSE_FAILED + " unsupported protocol version "
+                        + requestedVersion);
+            }
+        }
+
+        void write(final String response) {
+            pendingResponses.add(ByteBuffer.wrap((response + "\n").getBytes(Charset.defaultCharset())));
+            requestSessionUpdate(this);
+        }
+
+        private void writeFinalStatus(final UpgradeResult result) {
+            if (result == null) {
+                writeUntagged(RichConsoleConstants.TCPRESPONSE_FINISHED + " " + RichConsoleConstants.TCPRESPONSE_OK
+                        + " 0");
+                return;
+            }
+            for (Entry<String, Throwable> failure : result.getFailures().entrySet()) {
+                Throwable cause = failure.getValue();
+                String message = (cause != null) ? toSingleLineMessage(cause) : "unknown";
+                writeUntagged(RichConsoleConstants.TCPRESPONSE_FAILURE + " " + failure.getKey() + " " + message);
+            }
+            StringBuilder sb = new StringBuilder(RichConsoleConstants.TCPRESPONSE_FINISHED).append(' ')
+                    .append(toStatus(result.isSuccessful())).append(' ')
+                    .append(result.getTotalNanos() / UpgradePhaseEvent.NANOS_PER_MILLI);
+            for (Entry<UpgradePhase, Long> phaseNanos : result.getNanosByPhase().entrySet()) {
+                sb.append(' ').append(phaseNanos.getKey()).append('=')
+                        .append(phaseNanos.getValue() / UpgradePhaseEvent.NANOS_PER_MILLI);
+            }
+            writeUntagged(sb.toString());
+        }
+
+        /**
+         * Writes a line that does not answer a specific command, like the lines of the progress stream.
+         */
+        private void writeUntagged(final String line) {
+            if (protocolVersion == PROTOCOL_VERSION_1) {
+                write(line);
+            } else {
+                write(RichConsoleConstants.TCPRESPONSE_UNTAGGED_ID + " " + line);
+            }
+        }
+    }
+
+    /**
+     * Marks that the argument of the batch deployment command is the path of a list file.
+     */
+    private static final String DEPLOYMENT_LIST_FILE_PREFIX = "@";
+
+    /**
+     * The maximum number of lines in the block of a batch deployment command.
+     */
+    private static final int MAX_BATCH_SIZE = 4096;
+
+    /**
+     * The maximum length of a command line in bytes.
+     */
+    private static final int MAX_COMMAND_LINE_LENGTH = 16384;
+
+    /**
+     * The maximum number of received command lines of a session that wait for their execution. The reading of the
+     * connection is suspended while there are more. It must be more than the size of the largest batch.
+     */
+    private static final int MAX_PENDING_LINES_PER_SESSION = 2 * MAX_BATCH_SIZE;
+
+    private static final String PRIVATE_DIRECTORY_PERMISSIONS = "rwx------";
+
+    private static final String PRIVATE_DIRECTORY_PREFIX = "richconsole";
+
+    private static final int PROTOCOL_VERSION_1 = 1;
+
+    private static final int PROTOCOL_VERSION_2 = 2;
+
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    private static final String SOCKET_FILE_PERMISSIONS = "rw-------";
+
+    private static final String UNIX_DOMAIN_SOCKET_ADDRESS_CLASS = "java.net.UnixDomainSocketAddress";
+
+    private static final String UNIX_DOMAIN_SOCKET_UNSUPPORTED_MESSAGE =
+            "Unix domain sockets are supported from Java 16";
+
+    private static final String UNIX_PROTOCOL_FAMILY_NAME = "UNIX";
+
+    private static final int WORKER_QUEUE_CAPACITY = 64;
+
+    private static final int WORKER_THREAD_COUNT = 4;
+
+    private static final long WORKER_THREAD_KEEP_ALIVE_SECONDS = 60;
+
+    /**
+     * The maximum number of commands of one session that are executed at the same time.
+     */
+    private static final int MAX_CONCURRENT_COMMANDS_PER_SESSION = WORKER_THREAD_COUNT;
+
+    private static ThreadPoolExecutor createWorkerExecutor() {
+        final AtomicInteger workerThreadCounter = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(WORKER_THREAD_COUNT, WORKER_THREAD_COUNT,
+                WORKER_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(
+                        WORKER_QUEUE_CAPACITY), new ThreadFactory() {
+
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        return new Thread(r, "richconsole-upgrade-worker-" + workerThreadCounter.incrementAndGet());
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Creates a directory that only the owner of the process can access.
+     *
+     * @return The directory or null if the file system does not support POSIX permissions.
+     */
+    private static Path createPrivateDirectory(final Path parentDirectory) throws IOException {
+        try {
+            return Files.createTempDirectory(parentDirectory, PRIVATE_DIRECTORY_PREFIX, PosixFilePermissions
+                    .asFileAttribute(PosixFilePermissions.fromString(PRIVATE_DIRECTORY_PERMISSIONS)));
+        } catch (UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Opens a server channel on a Unix domain socket. The API of Java 16 is called via reflection as the bundle is
+     * compiled for older Java versions. The socket is bound in a private directory, its permissions are restricted and
+     * it is moved to its final path afterwards, so other users cannot connect in the meantime.
+     */
+    private static ServerSocketChannel openUnixDomainServerChannel(final File socketFile) throws IOException {
+        ProtocolFamily unixProtocolFamily;
+        Method openMethod;
+        Method addressFactoryMethod;
+        try {
+            unixProtocolFamily = StandardProtocolFamily.valueOf(UNIX_PROTOCOL_FAMILY_NAME);
+            openMethod = ServerSocketChannel.class.getMethod("open", ProtocolFamily.class);
+            addressFactoryMethod = Class.forName(UNIX_DOMAIN_SOCKET_ADDRESS_CLASS).getMethod("of", String.class);
+        } catch (IllegalArgumentException e) {
+            throw new UnsupportedOperationException(UNIX_DOMAIN_SOCKET_UNSUPPORTED_MESSAGE);
+        } catch (NoSuchMethodException e) {
+            throw new UnsupportedOperationException(UNIX_DOMAIN_SOCKET_UNSUPPORTED_MESSAGE);
+        } catch (ClassNotFoundException e) {
+            throw new UnsupportedOperationException(UNIX_DOMAIN_SOCKET_UNSUPPORTED_MESSAGE);
+        }
+
+        Path socketPath = socketFile.getAbsoluteFile().toPath();
+        Files.deleteIfExists(socketPath);
+        Path bindDirectory = createPrivateDirectory(socketPath.getParent());
+        if (bindDirectory == null) {
+            Logger.warn("Permissions of Unix domain socket file cannot be restricted: " + socketPath.toString());
+        }
+        Path bindPath = (bindDirectory != null) ? bindDirectory.resolve(socketPath.getFileName()) : socketPath;
+        ServerSocketChannel unixServerChannel = null;
+        boolean bound = false;
+        try {
+            SocketAddress socketAddress = (SocketAddress) addressFactoryMethod.invoke(null, bindPath.toString());
+            unixServerChannel = (ServerSocketChannel) openMethod.invoke(null, unixProtocolFamily);
+            unixServerChannel.bind(socketAddress);
+            if (bindDirectory != null) {
+                Files.setPosixFilePermissions(bindPath, PosixFilePermissions.fromString(SOCKET_FILE_PERMISSIONS));
+                Files.move(bindPath, socketPath, StandardCopyOption.ATOMIC_MOVE);
+            }
+            bound = true;
+            return unixServerChannel;
+        } catch (IllegalAccessException e) {
+            throw new UnsupportedOperationException(UNIX_DOMAIN_SOCKET_UNSUPPORTED_MESSAGE);
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        } finally {
+            if (!bound && (unixServerChannel != null)) {
+                unixServerChannel.close();
+            }
+            if (bindDirectory != null) {
+                try {
+                    Files.deleteIfExists(bindPath);
+                    Files.deleteIfExists(bindDirectory);
+                } catch (IOException e) {
+                    Logger.warn("Cannot delete temporary directory of Unix domain socket: " + bindDirectory.toString());
                 }
             }
         }
     }
 
-    private UpgradeProcess ongoingProcess = null;
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
 
-    private ServerSocket serverSocket = null;
+    private Selector selector = null;
 
-    private AtomicBoolean stopped = new AtomicBoolean(false);
+    private ServerSocketChannel serverChannel = null;
+
+    private final Queue<Session> sessionsToUpdate = new ConcurrentLinkedQueue<Session>();
 
-    private ReentrantLock stoppingLock = new ReentrantLock(true);
+    private File socketFile = null;
+
+    private AtomicBoolean stopped = new AtomicBoolean(false);
 
     private final UpgradeServiceImpl upgradeService;
 
+    private final ThreadPoolExecutor workerExecutor = createWorkerExecutor();
+
+    /**
+     * Creates a server that listens on a Unix domain socket. Unix domain sockets are available from Java 16.
+     *
+     * @param bundleDeployerService
+     *            The service that executes the upgrade commands.
+     * @param socketFile
+     *            The path of the socket file. An existing file on the path is replaced and the new file is only
+     *            accessible by the owner of the process.
+     */
+    public TCPServer(final UpgradeServiceImpl bundleDeployerService, final File socketFile) {
+        this.upgradeService = bundleDeployerService;
+        this.socketFile = socketFile;
+        ServerSocketChannel unixServerChannel = null;
+        try {
+            unixServerChannel = openUnixDomainServerChannel(socketFile);
+            startServer(unixServerChannel);
+        } catch (UnsupportedOperationException e) {
+            Logger.error("Deployment server could not be started on Unix domain socket " + socketFile.getPath()
+                    + ": " + e.getMessage(), null);
+            stopServer();
+        } catch (IOException e) {
+            Logger.error("Deployment server could not have been binded to Unix domain socket " + socketFile.getPath(),
+                    e);
+            closeUnstartedChannel(unixServerChannel);
+            stopServer();
+        }
+    }
+
+    /**
+     * Creates a server that listens on a TCP port of the local host.
+     *
+     * @param bundleDeployerService
+     *            The service that executes the upgrade commands.
+     * @param port
+     *            The port to listen on or 0 to choose a free port.
+     */
     public TCPServer(final UpgradeServiceImpl bundleDeployerService, final int port) {
         this.upgradeService = bundleDeployerService;
 
@@ -80,174 +681,386 @@ public class TCPServer implements Closeable {
             Logger.error("Deployment server could not be started. Address of localhost is not available", e);
             return;
         }
+        ServerSocketChannel tcpServerChannel = null;
         try {
-            serverSocket = new ServerSocket();
-            serverSocket.setReuseAddress(true);
+            tcpServerChannel = ServerSocketChannel.open();
+            tcpServerChannel.socket().setReuseAddress(true);
             SocketAddress socketAddress = new InetSocketAddress(localAddress, port);
-            serverSocket.bind(socketAddress);
-
-            ServerThread serverThread = new ServerThread();
-            serverThread.start();
+            tcpServerChannel.socket().bind(socketAddress);
+            startServer(tcpServerChannel);
         } catch (IOException e) {
             Logger.error("Deployment server could not have been binded to address " + localAddress.toString()
                     + " on port " + port, null);
+            closeUnstartedChannel(tcpServerChannel);
+            stopServer();
             return;
         }
 
     }
 
+    private void acceptConnection() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.register(selector, SelectionKey.OP_READ, new Session(channel));
+    }
+
     @Override
     public void close() {
-        stoppingLock.lock();
         stopped.set(true);
-        if (ongoingProcess == null) {
-            stopServer();
+        Selector tmpSelector = selector;
+        if (tmpSelector != null) {
+            tmpSelector.wakeup();
         }
-        stoppingLock.unlock();
     }
 
-    public int getLocalPort() {
-        return serverSocket.getLocalPort();
-    }
-
-    private void handleCommand(final String line, final OutputStream outputStream) throws IOException {
-        if (line.startsWith(RichConsoleConstants.TCPCOMMAND_DEPLOY_BUNDLE)) {
-            handleDeployCommand(line);
-            outputStream.write((RichConsoleConstants.TCPRESPONSE_OK + "\n").getBytes(Charset.defaultCharset()));
-            outputStream.flush();
-        } else if (line.startsWith(RichConsoleConstants.TCPCOMMAND_UNINSTALL)) {
-            handleUninstallCommand(line);
-            outputStream.write((RichConsoleConstants.TCPRESPONSE_OK + "\n").getBytes(Charset.defaultCharset()));
-            outputStream.flush();
-        } else if (line.startsWith(RichConsoleConstants.TCPCOMMAND_GET_ENVIRONMENT_ID)) {
-            String environmentId = System.getProperty(RichConsoleConstants.SYSPROP_ENVIRONMENT_ID);
-            if (environmentId != null) {
-                outputStream.write((environmentId + "\n").getBytes(Charset.defaultCharset()));
-            } else {
-                outputStream.write("\n".getBytes(Charset.defaultCharset()));
-            }
+    private void closeUnstartedChannel(final ServerSocketChannel unstartedServerChannel) {
+        if (unstartedServerChannel == null) {
+            return;
+        }
+        try {
+            unstartedServerChannel.close();
+        } catch (IOException e) {
+            Logger.error("Cannot close the channel of the deployment server", e);
         }
     }
 
-    private void handleCommandsFromSocket(final Socket socket) throws IOException {
-        InputStream inputStream = socket.getInputStream();
-        OutputStream outputStream = socket.getOutputStream();
-        InputStreamReader reader = new InputStreamReader(inputStream, Charset.defaultCharset());
-        BufferedReader br = new BufferedReader(reader);
+    private void closeSession(final SelectionKey key, final Session session) {
+        key.cancel();
         try {
-            String line = br.readLine();
-            while (line != null) {
-                handleCommand(line, outputStream);
-                line = br.readLine();
-            }
+            session.channel.close();
         } catch (IOException e) {
-            Logger.error("Error during reading from Upgrade Socket", e);
+            Logger.error("Error during closing incoming upgrade socket", e);
         }
+        session.abort();
     }
 
-    private void handleDeployCommand(String command) {
-        command = command.substring(RichConsoleConstants.TCPCOMMAND_DEPLOY_BUNDLE.length() + 1);
-        String[] commandParts = command.split("\\@");
-        String bundleLocationString = commandParts[0];
-        Integer startLevel = null;
-        boolean start = false;
-        if (commandParts.length > 1) {
-            String[] startParts = commandParts[1].split("\\:");
-            if (startParts.length == 1) {
-                if (startParts[0].equals("start")) {
-                    start = true;
-                } else {
-                    try {
-                        startLevel = Integer.valueOf(startParts[0]);
-                    } catch (NumberFormatException e) {
-                        Logger.error("(Skipping) Invalid install command syntax: " + command, null);
-                        return;
-                    }
-                }
+    private String decodeLine(final ByteArrayOutputStream lineBuffer) {
+        String line = new String(lineBuffer.toByteArray(), Charset.defaultCharset());
+        lineBuffer.reset();
+        if (line.endsWith("\r")) {
+            line = line.substring(0, line.length() - 1);
+        }
+        return line;
+    }
+
+    private void executeCommand(final Session session, final Command command) throws IOException {
+        String name = command.name;
+        if (RichConsoleConstants.TCPCOMMAND_DEPLOY_BUNDLE.equals(name)) {
+            boolean deployed = handleDeployCommand(session, command.getArguments());
+            session.respond(command, (deployed || (command.id == null)) ? RichConsoleConstants.TCPRESPONSE_OK
+                    : RichConsoleConstants.TCPRESPONSE_FAILED);
+        } else if (RichConsoleConstants.TCPCOMMAND_DEPLOY_BUNDLES.equals(name)) {
+            session.respond(command, handleDeployBundlesCommand(session, command));
+        } else if (RichConsoleConstants.TCPCOMMAND_UNINSTALL.equals(name)) {
+            handleUninstallCommand(session, command.getArguments());
+            session.respond(command, RichConsoleConstants.TCPRESPONSE_OK);
+        } else if (RichConsoleConstants.TCPCOMMAND_STREAM_PROGRESS.equals(name)) {
+            session.enableProgressStream();
+            session.respond(command, RichConsoleConstants.TCPRESPONSE_OK);
+        } else if (RichConsoleConstants.TCPCOMMAND_GET_ENVIRONMENT_ID.equals(name)) {
+            String environmentId = System.getProperty(RichConsoleConstants.SYSPROP_ENVIRONMENT_ID);
+            if (environmentId != null) {
+                session.respond(command, environmentId);
             } else {
-                try {
-                    startLevel = Integer.valueOf(startParts[0]);
-                } catch (NumberFormatException e) {
-                    Logger.error("(Skipping) Invalid install command syntax: " + command, null);
-                    return;
-                }
-                if (!"start".equals(startParts[1])) {
-                    Logger.error("(Skipping) Invalid install command syntax: " + command, null);
-                    return;
-                }
-                start = true;
+                session.respond(command, "");
             }
+        } else if (command.id != null) {
+            session.respond(command, RichConsoleConstants.TCPRESPONSE_FAILED + " unknown command");
         }
+    }
 
+    /**
+     * The number of lines that follow the command line and belong to the command.
+     *
+     * @return The size of the block or 0 if the command has no block or the size is invalid.
+     */
+    private int getBlockSize(final Command command) {
+        if (!RichConsoleConstants.TCPCOMMAND_DEPLOY_BUNDLES.equals(command.name)) {
+            return 0;
+        }
+        String arguments = command.getArguments();
+        if (arguments.startsWith(DEPLOYMENT_LIST_FILE_PREFIX)) {
+            return 0;
+        }
         try {
-            URI bundleLocation = new URI(bundleLocationString);
-            ongoingProcess.deployBundle(bundleLocation, start, startLevel);
-        } catch (URISyntaxException e) {
-            Logger.error("(Skipping) Could not process bundle install command: " + command, e);
+            int blockSize = Integer.parseInt(arguments);
+            return (blockSize > 0) ? blockSize : 0;
+        } catch (NumberFormatException e) {
+            return 0;
         }
     }
 
-    private synchronized void handleIncomingSocket(final Socket socket) {
-        stoppingLock.lock();
-        if (!stopped.get()) {
-            ongoingProcess = upgradeService.newUpgradeProcess();
-        } else {
-            stoppingLock.unlock();
-            return;
+    /**
+     * The TCP port the server listens on or -1 if the server listens on a Unix domain socket or it could not be
+     * started.
+     */
+    public int getLocalPort() {
+        if ((socketFile != null) || (serverChannel == null)) {
+            return -1;
         }
-        stoppingLock.unlock();
+        return serverChannel.socket().getLocalPort();
+    }
 
+    /**
+     * Executes a command and answers it. If the command fails with an exception, "failed" and the reason is answered,
+     * so the client does not wait for the response forever.
+     */
+    private void handleCommand(final Session session, final Command command) {
         try {
-            handleCommandsFromSocket(socket);
+            executeCommand(session, command);
         } catch (IOException e) {
-            Logger.error("Error during receiving deployment commands", e);
-        } finally {
-            stoppingLock.lock();
+            Logger.error("Error during processing upgrade command: " + command.line, e);
+            session.respond(command, RichConsoleConstants.TCPRESPONSE_FAILED + " " + toSingleLineMessage(e));
+        } catch (RuntimeException e) {
+            Logger.error("Error during processing upgrade command: " + command.line, e);
+            session.respond(command, RichConsoleConstants.TCPRESPONSE_FAILED + " " + toSingleLineMessage(e));
+        }
+    }
+
+    /**
+     * Deploys a batch of bundles in the upgrade process of the session.
+     *
+     * @return The response to the command.
+     */
+    private String handleDeployBundlesCommand(final Session session, final Command command) throws IOException {
+        String arguments = command.getArguments();
+        List<String> expressions;
+        if (arguments.startsWith(DEPLOYMENT_LIST_FILE_PREFIX)) {
+            File listFile = new File(arguments.substring(DEPLOYMENT_LIST_FILE_PREFIX.length()));
             try {
-                socket.close();
+                expressions = readDeploymentListFile(listFile);
             } catch (IOException e) {
-                Logger.error("Error during closing incoming upgrade socket", e);
+                throw new IOException("Cannot read deployment list file " + listFile.getPath(), e);
             }
-            final UpgradeProcess finishingProcess = ongoingProcess;
-            ongoingProcess = null;
-            new Thread(new Runnable() {
+        } else if ((command.block.size() == 0) || (getBlockSize(command) != command.block.size())) {
+            return RichConsoleConstants.TCPRESPONSE_FAILED + " invalid or incomplete batch: " + command.line;
+        } else {
+            expressions = command.block;
+        }
 
-                @Override
-                public void run() {
-                    stoppingLock.lock();
-                    try {
-                        finishingProcess.finish();
-                    } finally {
-                        stoppingLock.unlock();
-                    }
-                }
-            }).start();
-            if (stopped.get()) {
-                stopServer();
+        List<BundleDeployment> deployments = new ArrayList<BundleDeployment>(expressions.size());
+        for (String expression : expressions) {
+            try {
+                deployments.add(BundleDeployment.parse(expression));
+            } catch (IllegalArgumentException e) {
+                Logger.error("(Skipping) Invalid batch deployment", e);
+                return RichConsoleConstants.TCPRESPONSE_FAILED + " invalid deployment: " + expression;
+            }
+        }
+
+        List<Bundle> deployedBundles = session.getOrCreateUpgradeProcess().deployBundles(deployments);
+        StringBuilder failedLocations = new StringBuilder();
+        int deployedCount = 0;
+        for (int i = 0; i < deployments.size(); i++) {
+            if (deployedBundles.get(i) != null) {
+                deployedCount++;
+            } else {
+                failedLocations.append(' ').append(deployments.get(i).getBundleLocation());
+            }
+        }
+        return toStatus(deployedCount == deployments.size()) + " " + deployedCount + "/" + deployments.size()
+                + failedLocations;
+    }
+
+    private boolean handleDeployCommand(final Session session, final String arguments) {
+        BundleDeployment deployment;
+        try {
+            deployment = BundleDeployment.parse(arguments);
+        } catch (IllegalArgumentException e) {
+            Logger.error("(Skipping) Invalid install command syntax: " + arguments, e);
+            return false;
+        }
+        return session.getOrCreateUpgradeProcess().deployBundle(deployment.getBundleLocation(),
+                deployment.isStart(), deployment.getStartLevel()) != null;
+    }
+
+    private void handleSelectedKey(final SelectionKey key) throws IOException {
+        if (!key.isValid()) {
+            return;
+        }
+        if (key.isAcceptable()) {
+            acceptConnection();
+            return;
+        }
+        Session session = (Session) key.attachment();
+        try {
+            if (key.isReadable()) {
+                readFromSession(key, session);
+            }
+            if (key.isValid() && key.isWritable()) {
+                writeToSession(key, session);
             }
-            stoppingLock.unlock();
+        } catch (IOException e) {
+            Logger.error("Error during communicating on upgrade socket", e);
+            closeSession(key, session);
         }
     }
 
-    private void handleUninstallCommand(String command) {
-        command = command.substring(RichConsoleConstants.TCPCOMMAND_UNINSTALL.length() + 1);
-        String[] commandParts = command.split(":");
+    private void handleUninstallCommand(final Session session, final String arguments) {
+        String[] commandParts = arguments.split(":");
         String symbolicName = commandParts[0];
         String version = null;
         if (commandParts.length > 1) {
             version = commandParts[1];
         }
-        ongoingProcess.uninstallBundle(symbolicName, version);
+        session.getOrCreateUpgradeProcess().uninstallBundle(symbolicName, version);
+    }
+
+    /**
+     * Whether the command must wait for the previous commands of the session and the next commands must wait for it.
+     */
+    private boolean isBarrier(final Command command) {
+        return !RichConsoleConstants.TCPCOMMAND_DEPLOY_BUNDLE.equals(command.name)
+                && !RichConsoleConstants.TCPCOMMAND_DEPLOY_BUNDLES.equals(command.name)
+                && !RichConsoleConstants.TCPCOMMAND_GET_ENVIRONMENT_ID.equals(command.name);
+    }
+
+    /**
+     * Whether the server could be started and accepts connections until it is closed.
+     */
+    public boolean isStarted() {
+        return serverChannel != null;
+    }
+
+    /**
+     * Applies the interest and close requests that worker threads queued for the sessions. Must be called from the
+     * selector thread.
+     */
+    private void processSessionChanges() {
+        Session session = sessionsToUpdate.poll();
+        while (session != null) {
+            SelectionKey key = session.channel.keyFor(selector);
+            if ((key != null) && key.isValid()) {
+                if (session.isReadable()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                }
+                if (!session.pendingResponses.isEmpty()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                } else if (session.finished) {
+                    closeSession(key, session);
+                }
+            }
+            session = sessionsToUpdate.poll();
+        }
+    }
+
+    private List<String> readDeploymentListFile(final File listFile) throws IOException {
+        List<String> expressions = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(listFile),
+                Charset.defaultCharset()));
+        try {
+            String line = reader.readLine();
+            while (line != null) {
+                line = line.trim();
+                if ((line.length() > 0) && !line.startsWith("#")) {
+                    expressions.add(line);
+                }
+                line = reader.readLine();
+            }
+        } finally {
+            reader.close();
+        }
+        return expressions;
+    }
+
+    private void readFromSession(final SelectionKey key, final Session session) throws IOException {
+        readBuffer.clear();
+        int readBytes = session.channel.read(readBuffer);
+        if (readBytes < 0) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            session.endOfInputReached();
+            return;
+        }
+        readBuffer.flip();
+        while (readBuffer.hasRemaining()) {
+            byte b = readBuffer.get();
+            if (b == '\n') {
+                session.commandReceived(decodeLine(session.lineBuffer));
+            } else if (session.lineBuffer.size() >= MAX_COMMAND_LINE_LENGTH) {
+                session.commandLineTooLong();
+            } else {
+                session.lineBuffer.write(b);
+            }
+        }
+        if (session.suspendReadIfFull() || !session.isReadable()) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        }
+    }
+
+    private void requestSessionUpdate(final Session session) {
+        sessionsToUpdate.add(session);
+        Selector tmpSelector = selector;
+        if (tmpSelector != null) {
+            tmpSelector.wakeup();
+        }
+    }
+
+    private void startServer(final ServerSocketChannel boundServerChannel) throws IOException {
+        selector = Selector.open();
+        boundServerChannel.configureBlocking(false);
+        boundServerChannel.register(selector, SelectionKey.OP_ACCEPT);
+        serverChannel = boundServerChannel;
+
+        ServerThread serverThread = new ServerThread();
+        serverThread.start();
     }
 
     private synchronized void stopServer() {
+        workerExecutor.shutdown();
         try {
-            if (serverSocket != null) {
-                serverSocket.close();
+            if (selector != null) {
+                for (SelectionKey key : selector.keys()) {
+                    key.channel().close();
+                    Object attachment = key.attachment();
+                    if (attachment instanceof Session) {
+                        ((Session) attachment).abort();
+                    }
+                }
+                selector.close();
+            }
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+            if (socketFile != null) {
+                Files.deleteIfExists(socketFile.getAbsoluteFile().toPath());
             }
         } catch (IOException e) {
             Logger.error("Cannot stop deployment server", e);
         }
-        serverSocket = null;
+    }
+
+    private static String toStatus(final boolean successful) {
+        return successful ? RichConsoleConstants.TCPRESPONSE_OK : RichConsoleConstants.TCPRESPONSE_FAILED;
+    }
+
+    /**
+     * The message of the exception and its cause in a form that fits into one response line.
+     */
+    private static String toSingleLineMessage(final Throwable throwable) {
+        String message = String.valueOf(throwable.getMessage());
+        Throwable cause = throwable.getCause();
+        if ((cause != null) && (cause.getMessage() != null) && !message.contains(cause.getMessage())) {
+            message = message + ": " + cause.getMessage();
+        }
+        return message.replace('\r', ' ').replace('\n', ' ');
+    }
+
+    private void writeToSession(final SelectionKey key, final Session session) throws IOException {
+        ByteBuffer response = session.pendingResponses.peek();
+        while (response != null) {
+            session.channel.write(response);
+            if (response.hasRemaining()) {
+                return;
+            }
+            session.pendingResponses.poll();
+            response = session.pendingResponses.peek();
+        }
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        if (session.finished) {
+            closeSession(key, session);
+        }
     }
 }
@@ -0,0 +1,488 @@
+/**
+ * This file is part of Everit - OSGi Rich Console.
+ *
+ * Everit - OSGi Rich Console is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit - OSGi Rich Console is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit - OSGi Rich Console.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.dev.richconsole.internal.upgrade;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.everit.osgi.dev.richconsole.RichConsoleConstants;
+import org.everit.osgi.dev.richconsole.internal.Logger;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleException;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.FrameworkListener;
+import org.osgi.framework.startlevel.BundleStartLevel;
+import org.osgi.framework.startlevel.FrameworkStartLevel;
+import org.osgi.framework.wiring.FrameworkWiring;
+
+/**
+ * Serializes the modifications of the framework that are done by the {@link UpgradeProcess}es and commits the finished
+ * processes in groups. If processes finish while a refresh is running, they are queued and the next committer thread
+ * refreshes, resolves and starts the bundles of all of them in one round.
+ */
+class UpgradeCommitter {
+
+    /**
+     * Orders bundles by their start level and their id.
+     */
+    private static class StartOrderComparator implements Comparator<Bundle> {
+
+        @Override
+        public int compare(final Bundle o1, final Bundle o2) {
+            int startLevel1 = o1.adapt(BundleStartLevel.class).getStartLevel();
+            int startLevel2 = o2.adapt(BundleStartLevel.class).getStartLevel();
+            if (startLevel1 != startLevel2) {
+                return (startLevel1 < startLevel2) ? -1 : 1;
+            }
+            long id1 = o1.getBundleId();
+            long id2 = o2.getBundleId();
+            return (id1 < id2) ? -1 : ((id1 == id2) ? 0 : 1);
+        }
+    }
+
+    /**
+     * Records the outcome of the bundle starts in the results of the processes that own the bundles.
+     */
+    private class ResultRecordingStartListener implements BundleStarter.Listener {
+
+        private final List<UpgradeProcess> batch;
+
+        private final boolean recordStartedBundles;
+
+        public ResultRecordingStartListener(final List<UpgradeProcess> batch, final boolean recordStartedBundles) {
+            this.batch = batch;
+            this.recordStartedBundles = recordStartedBundles;
+        }
+
+        @Override
+        public void bundleStarted(final Bundle bundle, final long durationNanos) {
+            UpgradePhaseEvent phaseEvent = new UpgradePhaseEvent(UpgradePhase.START, bundle, true, durationNanos);
+            for (UpgradeProcess process : selectOwnerProcesses(batch, bundle)) {
+                if (recordStartedBundles) {
+                    process.getResult().addStartedBundle(bundle);
+                }
+                process.getResult().addPhaseEvent(phaseEvent);
+            }
+        }
+
+        @Override
+        public void bundleStartFailed(final Bundle bundle, final BundleException cause, final long durationNanos) {
+            UpgradePhaseEvent phaseEvent = new UpgradePhaseEvent(UpgradePhase.START, bundle, false, durationNanos);
+            for (UpgradeProcess process : selectOwnerProcesses(batch, bundle)) {
+                process.getResult().addFailure(bundle.toString(), cause);
+                process.getResult().addPhaseEvent(phaseEvent);
+            }
+        }
+    }
+
+    private static final Comparator<Bundle> START_ORDER = new StartOrderComparator();
+
+    /**
+     * The processes that changed the state of the framework and are not committed yet. Guarded by
+     * {@link #frameworkLock}.
+     */
+    private final Set<UpgradeProcess> changedProcesses = new HashSet<UpgradeProcess>();
+
+    /**
+     * The processes that already committed. Guarded by {@link #frameworkLock}.
+     */
+    private final Set<UpgradeProcess> committedProcesses = new HashSet<UpgradeProcess>();
+
+    private int currentFrameworkStartLevelValue = -1;
+
+    private final BundleStarter bundleStarter;
+
+    private final ReentrantLock frameworkLock = new ReentrantLock(true);
+
+    private final FrameworkStartLevel frameworkStartLevel;
+
+    private final FrameworkWiring frameworkWiring;
+
+    /**
+     * The start level of the framework before the first uncommitted process lowered it or -1 if the framework is on its
+     * original start level. Guarded by {@link #frameworkLock}.
+     */
+    private int originalFrameworkStartLevelValue = -1;
+
+    /**
+     * The processes that called finish and wait for a commit. Guarded by the instance of the list.
+     */
+    private final List<UpgradeProcess> pendingProcesses = new ArrayList<UpgradeProcess>();
+
+    private final boolean startLevelStopStrategy;
+
+    public UpgradeCommitter(final BundleContext systemBundleContext) {
+        Bundle systemBundle = systemBundleContext.getBundle();
+        frameworkWiring = systemBundle.adapt(FrameworkWiring.class);
+        frameworkStartLevel = systemBundle.adapt(FrameworkStartLevel.class);
+
+        String stopStrategy = System.getProperty(RichConsoleConstants.SYSPROP_UPGRADE_STOP_STRATEGY,
+                RichConsoleConstants.UPGRADE_STOP_STRATEGY_DEPENDENCY_CLOSURE);
+        startLevelStopStrategy = RichConsoleConstants.UPGRADE_STOP_STRATEGY_START_LEVEL.equals(stopStrategy);
+        if (!startLevelStopStrategy
+                && !RichConsoleConstants.UPGRADE_STOP_STRATEGY_DEPENDENCY_CLOSURE.equals(stopStrategy)) {
+            Logger.warn("Unknown upgrade stop strategy '" + stopStrategy + "', using "
+                    + RichConsoleConstants.UPGRADE_STOP_STRATEGY_DEPENDENCY_CLOSURE);
+        }
+
+        boolean parallelStart = Boolean.getBoolean(RichConsoleConstants.SYSPROP_UPGRADE_PARALLEL_START);
+        bundleStarter = new BundleStarter(parallelStart, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Commits the process and all other processes that finished in the meantime. The call returns when the bundles of
+     * the process are refreshed and started.
+     */
+    public void commit(final UpgradeProcess process) {
+        synchronized (pendingProcesses) {
+            pendingProcesses.add(process);
+        }
+        frameworkLock.lock();
+        try {
+            if (committedProcesses.remove(process)) {
+                return;
+            }
+            List<UpgradeProcess> batch;
+            synchronized (pendingProcesses) {
+                batch = new ArrayList<UpgradeProcess>(pendingProcesses);
+                pendingProcesses.clear();
+            }
+            commitBatch(batch);
+            committedProcesses.addAll(batch);
+            committedProcesses.remove(process);
+        } finally {
+            frameworkLock.unlock();
+        }
+    }
+
+    private void commitBatch(final List<UpgradeProcess> batch) {
+        LinkedHashSet<Bundle> affectedBundles = new LinkedHashSet<Bundle>();
+        LinkedHashSet<Bundle> bundlesWithStartFlag = new LinkedHashSet<Bundle>();
+        LinkedHashSet<Bundle> stoppedBundles = new LinkedHashSet<Bundle>();
+        boolean stateChanged = false;
+        boolean uninstallHappened = false;
+        for (UpgradeProcess process : batch) {
+            if (changedProcesses.remove(process)) {
+                stateChanged = true;
+            }
+            affectedBundles.addAll(process.getAffectedBundles());
+            bundlesWithStartFlag.addAll(process.getInstalledBundlesWithStartFlag());
+            stoppedBundles.addAll(process.getStoppedBundles());
+            uninstallHappened = uninstallHappened || process.isUninstallHappened();
+        }
+        if (!stateChanged) {
+            return;
+        }
+        if (batch.size() > 1) {
+            Logger.info("Committing " + batch.size() + " upgrade processes together");
+        }
+        long phaseStartNanos = System.nanoTime();
+        if (uninstallHappened || !frameworkWiring.getRemovalPendingBundles().isEmpty()) {
+            boolean successful = refreshBundles(affectedBundles);
+            recordPhase(batch, UpgradePhase.REFRESH, successful, phaseStartNanos);
+        } else {
+            Logger.info("Skipping refresh as there are no removal pending bundles");
+        }
+
+        phaseStartNanos = System.nanoTime();
+        boolean resolved = resolveBundles(affectedBundles);
+        recordPhase(batch, UpgradePhase.RESOLVE, resolved, phaseStartNanos);
+        Collection<Bundle> bundlesToStart = frameworkWiring.getDependencyClosure(bundlesWithStartFlag);
+        bundlesToStart = leaveOutUncommittedBundles(bundlesToStart, bundlesWithStartFlag, false);
+        Collection<Bundle> bundlesToRestart = leaveOutUncommittedBundles(stoppedBundles, stoppedBundles, true);
+
+        if (changedProcesses.isEmpty() && (originalFrameworkStartLevelValue >= 0)) {
+            if (currentFrameworkStartLevelValue != originalFrameworkStartLevelValue) {
+                phaseStartNanos = System.nanoTime();
+                boolean successful = setFrameworkStartLevel(originalFrameworkStartLevelValue);
+                recordPhase(batch, UpgradePhase.START_LEVEL, successful, phaseStartNanos);
+            }
+            originalFrameworkStartLevelValue = -1;
+        }
+
+        bundleStarter.startBundles(bundlesToStart, 0, new ResultRecordingStartListener(batch, true));
+        restartStoppedBundles(batch, bundlesToRestart);
+    }
+
+    /**
+     * Finds the process that changed the state of the framework, is not committed yet and stopped, updated, installed
+     * or uninstalled the bundle. The caller must hold the lock.
+     */
+    private UpgradeProcess findUncommittedOwnerProcess(final Bundle bundle) {
+        for (UpgradeProcess process : changedProcesses) {
+            if (process.getAffectedBundles().contains(bundle) || process.getStoppedBundles().contains(bundle)) {
+                return process;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The start level of the framework before any of the ongoing processes lowered it.
+     */
+    public int getOriginalFrameworkStartLevel() {
+        if (originalFrameworkStartLevelValue >= 0) {
+            return originalFrameworkStartLevelValue;
+        }
+        return frameworkStartLevel.getStartLevel();
+    }
+
+    /**
+     * Leaves out the bundles that a process that is not committed yet is in the middle of changing. Starting them now
+     * would start them against half-applied changes. The bundles of the batch that must be started are handed over to
+     * that process, so its own commit starts them. The caller must hold the lock.
+     *
+     * @param bundles
+     *            The bundles that the batch would start.
+     * @param bundlesToHandOver
+     *            The bundles that must be started by the uncommitted process if they are left out.
+     * @param restart
+     *            Whether the bundles were stopped transiently and must be restarted or they have the start flag.
+     * @return The bundles that can be started by the batch.
+     */
+    private Collection<Bundle> leaveOutUncommittedBundles(final Collection<Bundle> bundles,
+            final Collection<Bundle> bundlesToHandOver, final boolean restart) {
+        if (changedProcesses.isEmpty()) {
+            return bundles;
+        }
+        List<Bundle> result = new ArrayList<Bundle>(bundles.size());
+        for (Bundle bundle : bundles) {
+            UpgradeProcess ownerProcess = findUncommittedOwnerProcess(bundle);
+            if (ownerProcess == null) {
+                result.add(bundle);
+            } else if (bundlesToHandOver.contains(bundle)) {
+                if (restart) {
+                    ownerProcess.getStoppedBundles().add(bundle);
+                } else {
+                    ownerProcess.getInstalledBundlesWithStartFlag().add(bundle);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Locks the framework for the caller thread. The lock must be held while a process modifies the framework.
+     */
+    public void lock() {
+        frameworkLock.lock();
+    }
+
+    /**
+     * Lowers the start level of the framework if it is higher than the specified value. The original start level is
+     * restored when the last process that changed the framework is committed. The caller must hold the lock.
+     */
+    private void lowerFrameworkStartLevel(final int startLevel, final UpgradeProcess process) {
+        if (originalFrameworkStartLevelValue < 0) {
+            originalFrameworkStartLevelValue = frameworkStartLevel.getStartLevel();
+            currentFrameworkStartLevelValue = originalFrameworkStartLevelValue;
+        }
+        if (startLevel < currentFrameworkStartLevelValue) {
+            long phaseStartNanos = System.nanoTime();
+            boolean successful = setFrameworkStartLevel(startLevel);
+            process.getResult().addPhaseEvent(new UpgradePhaseEvent(UpgradePhase.START_LEVEL, null, null,
+                    successful, System.nanoTime() - phaseStartNanos));
+        }
+    }
+
+    /**
+     * Called when a bundle gets the specified start level during an upgrade. With the start level stop strategy the
+     * framework start level is lowered, so the bundles above are started in order during the commit. The caller must
+     * hold the lock.
+     */
+    public void prepareStartLevel(final int startLevel, final UpgradeProcess process) {
+        if (startLevelStopStrategy) {
+            lowerFrameworkStartLevel(startLevel, process);
+        }
+    }
+
+    /**
+     * Marks the process as one that changed the state of the framework. The caller must hold the lock.
+     */
+    public void processChanged(final UpgradeProcess process) {
+        changedProcesses.add(process);
+    }
+
+    private boolean refreshBundles(final Collection<Bundle> bundles) {
+        Logger.info("Calling refresh on " + bundles.size()
+                + " affected bundles. Their dependency closure will be re-wired");
+
+        final AtomicBoolean refreshFinished = new AtomicBoolean(false);
+        Lock refreshFinishLock = new ReentrantLock();
+        Condition refreshFinishCondition = refreshFinishLock.newCondition();
+        FrameworkRefreshListener refreshListener =
+                new FrameworkRefreshListener(refreshFinished, refreshFinishLock, refreshFinishCondition);
+
+        frameworkWiring.refreshBundles(bundles, new FrameworkListener[] { refreshListener });
+
+        refreshFinishLock.lock();
+        try {
+            while (!refreshFinished.get()) {
+                refreshFinishCondition.await();
+            }
+        } catch (InterruptedException e) {
+            Logger.error("Interrupting waiting for framework refresh", e);
+            return false;
+        } finally {
+            refreshFinishLock.unlock();
+        }
+        return refreshListener.isSuccessful();
+    }
+
+    private void restartStoppedBundles(final List<UpgradeProcess> batch, final Collection<Bundle> stoppedBundles) {
+        List<Bundle> bundlesToRestart = new ArrayList<Bundle>();
+        for (Bundle bundle : stoppedBundles) {
+            int state = bundle.getState();
+            if ((state != Bundle.UNINSTALLED) && (state != Bundle.STARTING)) {
+                bundlesToRestart.add(bundle);
+            }
+        }
+        Collections.sort(bundlesToRestart, START_ORDER);
+        bundleStarter.startBundles(bundlesToRestart, Bundle.START_TRANSIENT,
+                new ResultRecordingStartListener(batch, false));
+    }
+
+    private void recordPhase(final List<UpgradeProcess> batch, final UpgradePhase phase, final boolean successful,
+            final long phaseStartNanos) {
+        UpgradePhaseEvent phaseEvent =
+                new UpgradePhaseEvent(phase, null, null, successful, System.nanoTime() - phaseStartNanos);
+        for (UpgradeProcess process : batch) {
+            process.getResult().addPhaseEvent(phaseEvent);
+        }
+    }
+
+    /**
+     * Resolves the bundles and their dependency closure. Uninstalled bundles are left out as they cannot be resolved
+     * anymore.
+     */
+    private boolean resolveBundles(final Collection<Bundle> bundles) {
+        List<Bundle> existingBundles = new ArrayList<Bundle>(bundles.size());
+        for (Bundle bundle : bundles) {
+            if (bundle.getState() != Bundle.UNINSTALLED) {
+                existingBundles.add(bundle);
+            }
+        }
+        if (existingBundles.isEmpty()) {
+            return true;
+        }
+        return frameworkWiring.resolveBundles(frameworkWiring.getDependencyClosure(existingBundles));
+    }
+
+    private List<UpgradeProcess> selectOwnerProcesses(final List<UpgradeProcess> batch, final Bundle bundle) {
+        List<UpgradeProcess> result = new ArrayList<UpgradeProcess>();
+        for (UpgradeProcess process : batch) {
+            if (process.getInstalledBundlesWithStartFlag().contains(bundle)
+                    || process.getStoppedBundles().contains(bundle)) {
+                result.add(process);
+            }
+        }
+        if (result.isEmpty()) {
+            return batch;
+        }
+        return result;
+    }
+
+    private boolean setFrameworkStartLevel(final int startLevel) {
+        Logger.info("Setting framework startlevel to " + startLevel);
+        final AtomicBoolean startLevelReached = new AtomicBoolean(false);
+        final AtomicBoolean successful = new AtomicBoolean(true);
+        final Lock lock = new ReentrantLock();
+        final Condition startLevelReachedCondition = lock.newCondition();
+
+        frameworkStartLevel.setStartLevel(startLevel, new FrameworkListener() {
+
+            @Override
+            public void frameworkEvent(final FrameworkEvent event) {
+                lock.lock();
+                int eventType = event.getType();
+                if ((eventType == FrameworkEvent.STARTLEVEL_CHANGED) || (eventType == FrameworkEvent.ERROR)) {
+                    if (eventType == FrameworkEvent.ERROR) {
+                        successful.set(false);
+                        Logger.error("Setting framework startlevel to " + startLevel + " finished with error: ",
+                                event.getThrowable());
+                    } else {
+                        Logger.info("Setting framework startlevel to " + startLevel + " finished with success");
+                    }
+                    startLevelReached.set(true);
+                    startLevelReachedCondition.signal();
+                }
+                lock.unlock();
+            }
+        });
+        lock.lock();
+        try {
+            while (!startLevelReached.get()) {
+                startLevelReachedCondition.await();
+            }
+        } catch (InterruptedException e) {
+            Logger.error("Startlevel reaching wait interrupted", e);
+            successful.set(false);
+        } finally {
+            lock.unlock();
+        }
+        currentFrameworkStartLevelValue = startLevel;
+        return successful.get();
+    }
+
+    /**
+     * Stops the bundles that are affected if the specified bundle is updated or uninstalled. By default the dependency
+     * closure of the bundle is stopped transiently in reverse start order and the process restarts them when it is
+     * committed. With the start level stop strategy the start level of the framework is lowered below the bundle. The
+     * caller must hold the lock.
+     */
+    public void stopBeforeChange(final Bundle bundle, final UpgradeProcess process) {
+        if (startLevelStopStrategy) {
+            lowerFrameworkStartLevel(bundle.adapt(BundleStartLevel.class).getStartLevel(), process);
+            return;
+        }
+        List<Bundle> dependencyClosure =
+                new ArrayList<Bundle>(frameworkWiring.getDependencyClosure(Collections.singleton(bundle)));
+        Collections.sort(dependencyClosure, Collections.reverseOrder(START_ORDER));
+        for (Bundle bundleToStop : dependencyClosure) {
+            int state = bundleToStop.getState();
+            if ((state == Bundle.ACTIVE) || (state == Bundle.STARTING)) {
+                long phaseStartNanos = System.nanoTime();
+                boolean successful = false;
+                try {
+                    Logger.info("Stopping bundle " + bundleToStop.toString() + " temporarily");
+                    bundleToStop.stop(Bundle.STOP_TRANSIENT);
+                    process.getStoppedBundles().add(bundleToStop);
+                    successful = true;
+                } catch (BundleException e) {
+                    Logger.error("Error during stopping bundle " + bundleToStop.toString(), e);
+                }
+                process.getResult().addPhaseEvent(new UpgradePhaseEvent(UpgradePhase.STOP, bundleToStop, successful,
+                        System.nanoTime() - phaseStartNanos));
+            }
+        }
+    }
+
+    public void unlock() {
+        frameworkLock.unlock();
+    }
+}
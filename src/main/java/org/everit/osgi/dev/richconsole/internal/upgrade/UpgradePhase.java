@@ -0,0 +1,78 @@
+/**
+ * This file is part of Everit - OSGi Rich Console.
+ *
+ * Everit - OSGi Rich Console is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit - OSGi Rich Console is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit - OSGi Rich Console.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.dev.richconsole.internal.upgrade;
+
+/**
+ * The phases of an upgrade process that are measured.
+ */
+public enum UpgradePhase {
+
+    /**
+     * Calculating the digest of the bundle content.
+     */
+    DIGEST,
+
+    /**
+     * Installing a new bundle.
+     */
+    INSTALL,
+
+    /**
+     * Reading the symbolic name and the version of the bundle from its manifest.
+     */
+    READ_MANIFEST,
+
+    /**
+     * Redefining the loaded classes of a directory bundle instead of updating it.
+     */
+    REDEFINE,
+
+    /**
+     * Refreshing the affected bundles.
+     */
+    REFRESH,
+
+    /**
+     * Resolving the affected bundles and their dependency closure.
+     */
+    RESOLVE,
+
+    /**
+     * Starting a bundle.
+     */
+    START,
+
+    /**
+     * Changing the start level of the framework.
+     */
+    START_LEVEL,
+
+    /**
+     * Stopping a bundle.
+     */
+    STOP,
+
+    /**
+     * Uninstalling a bundle.
+     */
+    UNINSTALL,
+
+    /**
+     * Updating an existing bundle.
+     */
+    UPDATE
+}
@@ -0,0 +1,87 @@
+/**
+ * This file is part of Everit - OSGi Rich Console.
+ *
+ * Everit - OSGi Rich Console is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit - OSGi Rich Console is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit - OSGi Rich Console.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.dev.richconsole.internal.upgrade;
+
+import org.osgi.framework.Bundle;
+
+/**
+ * The duration and outcome of one phase of an upgrade process. Phases that are not bound to a bundle (e.g. refresh)
+ * have no symbolic name and version. Every measured phase is also emitted as a Java Flight Recorder event if the
+ * flight recorder is available.
+ */
+public class UpgradePhaseEvent {
+
+    static final long NANOS_PER_MILLI = 1000000L;
+
+    private final long durationNanos;
+
+    private final UpgradePhase phase;
+
+    private final boolean successful;
+
+    private final String symbolicName;
+
+    private final String version;
+
+    public UpgradePhaseEvent(final UpgradePhase phase, final Bundle bundle, final boolean successful,
+            final long durationNanos) {
+        this(phase, bundle.getSymbolicName(), bundle.getVersion().toString(), successful, durationNanos);
+    }
+
+    public UpgradePhaseEvent(final UpgradePhase phase, final String symbolicName, final String version,
+            final boolean successful, final long durationNanos) {
+        this.phase = phase;
+        this.symbolicName = symbolicName;
+        this.version = version;
+        this.successful = successful;
+        this.durationNanos = durationNanos;
+        UpgradePhaseRecorder.record(this);
+    }
+
+    public long getDurationNanos() {
+        return durationNanos;
+    }
+
+    public UpgradePhase getPhase() {
+        return phase;
+    }
+
+    public String getSymbolicName() {
+        return symbolicName;
+    }
+
+    public String getVersion() {
+        return version;
+    }
+
+    public boolean isSuccessful() {
+        return successful;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(phase.toString());
+        if (symbolicName != null) {
+            sb.append(' ').append(symbolicName);
+            if (version != null) {
+                sb.append(':').append(version);
+            }
+        }
+        sb.append(successful ? " ok " : " failed ").append(durationNanos / NANOS_PER_MILLI).append(" ms");
+        return sb.toString();
+    }
+}
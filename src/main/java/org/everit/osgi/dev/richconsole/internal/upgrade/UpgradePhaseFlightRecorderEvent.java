@@ -0,0 +1,69 @@
+/**
+ * This file is part of Everit - OSGi Rich Console.
+ *
+ * Everit - OSGi Rich Console is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit - OSGi Rich Console is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit - OSGi Rich Console.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.dev.richconsole.internal.upgrade;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Java Flight Recorder event of one measured phase of an upgrade process. The class is only loaded by
+ * {@link UpgradePhaseRecorder} if the jdk.jfr package is available for the bundle.
+ */
+@Name("org.everit.osgi.dev.richconsole.UpgradePhase")
+@Label("Upgrade Phase")
+@Category("Rich Console")
+@Description("A measured phase of a bundle upgrade process")
+@StackTrace(false)
+class UpgradePhaseFlightRecorderEvent extends Event {
+
+    /**
+     * Commits an event with the data of the phase event if the event is enabled in a running recording.
+     */
+    static void commit(final UpgradePhaseEvent phaseEvent) {
+        UpgradePhaseFlightRecorderEvent event = new UpgradePhaseFlightRecorderEvent();
+        if (!event.isEnabled()) {
+            return;
+        }
+        event.phase = phaseEvent.getPhase().name();
+        event.symbolicName = phaseEvent.getSymbolicName();
+        event.version = phaseEvent.getVersion();
+        event.successful = phaseEvent.isSuccessful();
+        event.phaseDuration = phaseEvent.getDurationNanos();
+        event.commit();
+    }
+
+    @Label("Phase")
+    private String phase;
+
+    @Label("Phase Duration")
+    @Timespan(Timespan.NANOSECONDS)
+    private long phaseDuration;
+
+    @Label("Successful")
+    private boolean successful;
+
+    @Label("Symbolic Name")
+    private String symbolicName;
+
+    @Label("Version")
+    private String version;
+}
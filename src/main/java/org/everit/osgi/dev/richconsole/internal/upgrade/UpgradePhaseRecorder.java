@@ -0,0 +1,63 @@
+/**
+ * This file is part of Everit - OSGi Rich Console.
+ *
+ * Everit - OSGi Rich Console is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit - OSGi Rich Console is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit - OSGi Rich Console.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.dev.richconsole.internal.upgrade;
+
+import org.everit.osgi.dev.richconsole.internal.Logger;
+
+/**
+ * Emits the measured phases of the upgrade processes as Java Flight Recorder events. The jdk.jfr package is available
+ * from Java 11 and it is imported optionally by the bundle, so the event class is only loaded if the package can be
+ * reached, e.g. if the framework is started with org.osgi.framework.system.packages.extra=jdk.jfr. Otherwise the
+ * phases are only kept in the {@link UpgradeResult}s. If no recording is running, committing an event costs a check of
+ * a flag.
+ */
+final class UpgradePhaseRecorder {
+
+    private static final String FLIGHT_RECORDER_EVENT_CLASS =
+            "org.everit.osgi.dev.richconsole.internal.upgrade.UpgradePhaseFlightRecorderEvent";
+
+    private static volatile boolean flightRecorderAvailable = isFlightRecorderEventLoadable();
+
+    private static boolean isFlightRecorderEventLoadable() {
+        try {
+            Class.forName(FLIGHT_RECORDER_EVENT_CLASS, true, UpgradePhaseRecorder.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        } catch (LinkageError e) {
+            return false;
+        }
+    }
+
+    /**
+     * Emits the phase as a Java Flight Recorder event if the flight recorder is available.
+     */
+    static void record(final UpgradePhaseEvent phaseEvent) {
+        if (!flightRecorderAvailable) {
+            return;
+        }
+        try {
+            UpgradePhaseFlightRecorderEvent.commit(phaseEvent);
+        } catch (LinkageError e) {
+            flightRecorderAvailable = false;
+            Logger.warn("Upgrade phases cannot be emitted as Java Flight Recorder events: " + e.toString());
+        }
+    }
+
+    private UpgradePhaseRecorder() {
+    }
+}
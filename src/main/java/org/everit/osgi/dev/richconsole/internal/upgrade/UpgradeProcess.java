@@ -20,12 +20,12 @@ import java.io.File;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.util.Collection;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedHashSet;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.RecursiveAction;
 import java.util.jar.JarFile;
 import java.util.jar.Manifest;
 import java.util.zip.ZipException;
@@ -33,55 +33,130 @@ import java.util.zip.ZipException;
 import org.everit.osgi.dev.richconsole.internal.BundleData;
 import org.everit.osgi.dev.richconsole.internal.BundleUtil;
 import org.everit.osgi.dev.richconsole.internal.Logger;
+import org.everit.osgi.dev.richconsole.internal.ZipManifestReader;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.BundleException;
 import org.osgi.framework.Constants;
-import org.osgi.framework.FrameworkEvent;
-import org.osgi.framework.FrameworkListener;
 import org.osgi.framework.startlevel.BundleStartLevel;
-import org.osgi.framework.startlevel.FrameworkStartLevel;
-import org.osgi.framework.wiring.FrameworkWiring;
 
 public class UpgradeProcess {
 
-    private final UpgradeServiceImpl bundleDeployerService;
+    /**
+     * Prepares a range of deployments by splitting it until every subtask prepares one bundle.
+     */
+    private class PrepareBundlesTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<BundleDeployment> deployments;
+
+        private final int from;
+
+        private final PreparedBundle[] preparedBundles;
+
+        private final int to;
+
+        public PrepareBundlesTask(final List<BundleDeployment> deployments, final PreparedBundle[] preparedBundles,
+                final int from, final int to) {
+            this.deployments = deployments;
+            this.preparedBundles = preparedBundles;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if ((to - from) == 1) {
+                BundleDeployment deployment = deployments.get(from);
+                try {
+                    preparedBundles[from] = prepareBundle(deployment.getBundleLocation());
+                } catch (IllegalArgumentException e) {
+                    Logger.error("Could not deploy bundle " + deployment.toString(), e);
+                    result.addFailure(deployment.toString(), e);
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new PrepareBundlesTask(deployments, preparedBundles, from, middle), new PrepareBundlesTask(
+                    deployments, preparedBundles, middle, to));
+        }
+    }
+
+    /**
+     * A bundle whose manifest and digest are already read and that can be deployed.
+     */
+    private static class PreparedBundle {
+
+        private final BundleData bundleData;
+
+        private final File bundleFile;
+
+        private final URI bundleLocation;
+
+        private final String digest;
+
+        public PreparedBundle(final URI bundleLocation, final File bundleFile, final BundleData bundleData,
+                final String digest) {
+            this.bundleLocation = bundleLocation;
+            this.bundleFile = bundleFile;
+            this.bundleData = bundleData;
+            this.digest = digest;
+        }
+    }
+
+    /**
+     * The bundles that were updated, installed or uninstalled by the process.
+     */
+    private final LinkedHashSet<Bundle> affectedBundles = new LinkedHashSet<Bundle>();
 
-    private int currentFrameworkStartLevelValue;
+    private final UpgradeServiceImpl bundleDeployerService;
 
-    private final FrameworkStartLevel frameworkStartLevel;
+    private final BundleDigestStore bundleDigestStore;
 
-    private final FrameworkWiring frameworkWiring;
+    private final long creationNanos = System.nanoTime();
 
     private final LinkedHashSet<Bundle> installedBundlesWithStartFlag = new LinkedHashSet<Bundle>();
 
-    private final int originalFrameworkStartLevelValue;
+    private final UpgradeResult result = new UpgradeResult();
 
-    private final FrameworkRefreshListener refreshListener;
+    /**
+     * The bundles that were stopped transiently before a change and must be started again after the commit.
+     */
+    private final LinkedHashSet<Bundle> stoppedBundles = new LinkedHashSet<Bundle>();
 
     private boolean stateChanged = false;
 
+    private boolean uninstallHappened = false;
+
     private final BundleContext systemBundleContext;
 
-    public UpgradeProcess(final UpgradeServiceImpl bundleDeployerService,
+    private final UpgradeCommitter upgradeCommitter;
+
+    public UpgradeProcess(final UpgradeServiceImpl bundleDeployerService, final UpgradeCommitter upgradeCommitter,
             final BundleContext systemBundleContext) {
         this.bundleDeployerService = bundleDeployerService;
+        this.bundleDigestStore = bundleDeployerService.getBundleDigestStore();
+        this.upgradeCommitter = upgradeCommitter;
         this.systemBundleContext = systemBundleContext;
+    }
 
-        // Refresh classes must be initialized first because they will be not available if the richconsole re-deploys
-        // itself
-        final AtomicBoolean refreshFinished = new AtomicBoolean(false);
-
-        Lock refreshFinishLock = new ReentrantLock();
-        Condition refreshFinishCondition = refreshFinishLock.newCondition();
-        refreshListener = new FrameworkRefreshListener(refreshFinished, refreshFinishLock, refreshFinishCondition);
-
-        Bundle systemBundle = systemBundleContext.getBundle();
-        frameworkWiring = systemBundle.adapt(FrameworkWiring.class);
-
-        frameworkStartLevel = systemBundle.adapt(FrameworkStartLevel.class);
-        originalFrameworkStartLevelValue = frameworkStartLevel.getStartLevel();
-        currentFrameworkStartLevelValue = originalFrameworkStartLevelValue;
+    /**
+     * Applies the start flag and the start level of a deployment to a bundle whose content does not have to be
+     * updated. The process only has to be committed if the bundle must be started.
+     */
+    private void applyStartSettings(final Bundle bundle, final boolean startBundle, final Integer startLevel) {
+        BundleStartLevel bundleStartLevel = bundle.adapt(BundleStartLevel.class);
+        if ((startLevel != null) && (startLevel.intValue() != bundleStartLevel.getStartLevel())) {
+            Logger.info("Setting start level of bundle " + bundle.toString() + " to " + startLevel);
+            bundleStartLevel.setStartLevel(startLevel);
+        }
+        int state = bundle.getState();
+        if (startBundle && (state != Bundle.ACTIVE) && (state != Bundle.STARTING)
+                && (bundle.getHeaders().get(Constants.FRAGMENT_HOST) == null)) {
+            markStateChanged();
+            installedBundlesWithStartFlag.add(bundle);
+        }
     }
 
     private File convertURIToFile(final URI uri) {
@@ -99,7 +174,8 @@ public class UpgradeProcess {
     }
 
     /**
-     * Deploys a bundle.
+     * Deploys a bundle. The content of the bundle is analyzed before the process is locked, so more threads can deploy
+     * bundles within the same process concurrently.
      *
      * @param bundleLocation
      *            Location of a jar file or a maven project where target/classes contains every necessary entries.
@@ -111,23 +187,66 @@ public class UpgradeProcess {
      *            startLevel of the framework when the process was started.
      * @return The deployed bundle.
      */
-    public synchronized Bundle deployBundle(final URI bundleLocation, final boolean startBundle,
+    public Bundle deployBundle(final URI bundleLocation, final boolean startBundle, final Integer startLevel) {
+        PreparedBundle preparedBundle = prepareBundle(bundleLocation);
+        if (preparedBundle == null) {
+            return null;
+        }
+        return deployPreparedBundle(preparedBundle, startBundle, startLevel);
+    }
+
+    /**
+     * Deploys more bundles. The manifests and the digests of the bundles are read in parallel on the bundle reader pool
+     * of the service before any of them is deployed, then the bundles are deployed one after the other in the order of
+     * the list.
+     *
+     * @param deployments
+     *            The bundles to deploy.
+     * @return The deployed bundles in the order of the deployments. The list contains null for the bundles that could
+     *         not be deployed.
+     */
+    public List<Bundle> deployBundles(final List<BundleDeployment> deployments) {
+        List<PreparedBundle> preparedBundles = prepareBundles(deployments);
+        List<Bundle> deployedBundles = new ArrayList<Bundle>(deployments.size());
+        for (int i = 0; i < deployments.size(); i++) {
+            BundleDeployment deployment = deployments.get(i);
+            PreparedBundle preparedBundle = preparedBundles.get(i);
+            if (preparedBundle == null) {
+                deployedBundles.add(null);
+            } else {
+                deployedBundles.add(deployPreparedBundle(preparedBundle, deployment.isStart(),
+                        deployment.getStartLevel()));
+            }
+        }
+        return deployedBundles;
+    }
+
+    private Bundle deployPreparedBundle(final PreparedBundle preparedBundle, final boolean startBundle,
             final Integer startLevel) {
-        stateChanged = true;
-        if (startLevel != null && startLevel < currentFrameworkStartLevelValue) {
-            setFrameworkStartLevel(startLevel);
+        BundleData bundleData = preparedBundle.bundleData;
+        Bundle deployedBundle;
+        synchronized (this) {
+            upgradeCommitter.lock();
+            try {
+                deployedBundle = deployBundle(preparedBundle.bundleLocation, preparedBundle.bundleFile, bundleData,
+                        preparedBundle.digest, startBundle, startLevel);
+            } finally {
+                upgradeCommitter.unlock();
+            }
+        }
+        if ((deployedBundle != null) && bundleData.getEvaluatedLocationFile().isDirectory()) {
+            bundleDeployerService.directoryBundleDeployed(deployedBundle.getLocation(), preparedBundle.bundleLocation,
+                    bundleData.getEvaluatedLocationFile(), startBundle);
         }
+        return deployedBundle;
+    }
 
-        File bundleFile = convertURIToFile(bundleLocation);
+    private Bundle deployBundle(final URI bundleLocation, final File bundleFile, final BundleData bundleData,
+            final String digest, final boolean startBundle, final Integer startLevel) {
         String bundleLocationString = bundleLocation.toString();
 
         Bundle installedBundle = null;
 
-        BundleData bundleData = getBundleData(bundleFile);
-        if (bundleData == null) {
-            return null;
-        }
-
         URI realBundleLocation = bundleLocation;
         if (!bundleData.getEvaluatedLocationFile().getAbsoluteFile().equals(bundleFile.getAbsoluteFile())) {
             String newRealBundleLocationStr = "reference:" + bundleData.getEvaluatedLocationFile().toURI().toString();
@@ -139,25 +258,55 @@ public class UpgradeProcess {
         }
 
         Bundle originalBundle = bundleDeployerService.getExistingBundleBySymbolicName(bundleData.getSymbolicName(),
-                bundleData.getVersion(), bundleLocation);
+                bundleData.getVersion(), realBundleLocation);
+        if ((originalBundle != null) && (digest != null)
+                && originalBundle.getLocation().equals(realBundleLocation.toString())
+                && bundleDigestStore.isUnchanged(originalBundle.getLocation(), digest)) {
+            Logger.info("Skipping deployment of bundle " + originalBundle.toString() + " as its content is unchanged");
+            applyStartSettings(originalBundle, startBundle, startLevel);
+            return originalBundle;
+        }
+
+        if ((originalBundle != null) && (digest != null)
+                && originalBundle.getLocation().equals(realBundleLocation.toString())
+                && (!startBundle || (originalBundle.getState() == Bundle.ACTIVE))
+                && redefineClasses(originalBundle, bundleData)) {
+            bundleDigestStore.put(originalBundle.getLocation(), digest);
+            applyStartSettings(originalBundle, startBundle, startLevel);
+            return originalBundle;
+        }
+
+        markStateChanged();
+        if (startLevel != null) {
+            upgradeCommitter.prepareStartLevel(startLevel, this);
+        }
         if (originalBundle != null) {
             installedBundlesWithStartFlag.remove(originalBundle);
 
             BundleStartLevel originalBundleStartLevel = originalBundle.adapt(BundleStartLevel.class);
             int originalBundleStartLevelValue = originalBundleStartLevel.getStartLevel();
-            if (originalBundleStartLevelValue < currentFrameworkStartLevelValue) {
-                setFrameworkStartLevel(originalBundleStartLevelValue);
+            upgradeCommitter.stopBeforeChange(originalBundle, this);
+            if (!startBundle) {
+                // The bundle is deployed without the start flag, so it must stay stopped after the commit
+                stoppedBundles.remove(originalBundle);
             }
 
-            if (originalBundle.getLocation().equals(bundleLocation)) {
+            UpgradePhase phase = UpgradePhase.STOP;
+            long phaseStartNanos = System.nanoTime();
+            if (originalBundle.getLocation().equals(realBundleLocation.toString())) {
                 try {
-                    if (originalBundle.getState() == Bundle.ACTIVE) {
+                    if ((originalBundle.getState() == Bundle.ACTIVE) || !startBundle) {
                         Logger.info("Stopping already existing bundle " + originalBundle.toString());
                         originalBundle.stop();
+                        recordPhase(phase, bundleData, true, phaseStartNanos);
                     }
                     Logger.info("Calling update on bundle " + originalBundle.toString());
 
+                    phase = UpgradePhase.UPDATE;
+                    phaseStartNanos = System.nanoTime();
+                    affectedBundles.add(originalBundle);
                     originalBundle.update();
+                    recordPhase(phase, bundleData, true, phaseStartNanos);
                     installedBundle = originalBundle;
                     BundleStartLevel installedBundleStartLevel = installedBundle.adapt(BundleStartLevel.class);
                     if (startLevel != null && !startLevel.equals(installedBundleStartLevel.getStartLevel())) {
@@ -165,15 +314,26 @@ public class UpgradeProcess {
                     }
                 } catch (BundleException e) {
                     Logger.error("Error during deploying bundle: " + bundleLocationString, e);
+                    recordPhase(phase, bundleData, false, phaseStartNanos);
+                    result.addFailure(bundleLocationString, e);
                 }
             } else {
                 try {
                     Logger.info("Uninstalling Bundle " + originalBundle.getSymbolicName() + ":"
                             + originalBundle.getVersion().toString());
 
+                    phase = UpgradePhase.UNINSTALL;
+                    affectedBundles.add(originalBundle);
+                    uninstallHappened = true;
+                    bundleDigestStore.remove(originalBundle.getLocation());
                     originalBundle.uninstall();
+                    recordPhase(phase, bundleData, true, phaseStartNanos);
                     Logger.info("Installing bundle from '" + bundleLocationString + "'");
+                    phase = UpgradePhase.INSTALL;
+                    phaseStartNanos = System.nanoTime();
                     installedBundle = systemBundleContext.installBundle(realBundleLocation.toString());
+                    recordPhase(phase, bundleData, true, phaseStartNanos);
+                    affectedBundles.add(installedBundle);
                     BundleStartLevel newBundleStartLevel = installedBundle.adapt(BundleStartLevel.class);
                     if (startLevel == null) {
                         newBundleStartLevel.setStartLevel(originalBundleStartLevelValue);
@@ -183,76 +343,66 @@ public class UpgradeProcess {
 
                 } catch (BundleException e) {
                     Logger.error("Error during deploying bundle: " + bundleLocationString, e);
+                    recordPhase(phase, bundleData, false, phaseStartNanos);
+                    result.addFailure(bundleLocationString, e);
                 }
             }
         } else {
+            long phaseStartNanos = System.nanoTime();
             try {
                 Integer startLevelToUse = startLevel;
                 if (startLevelToUse == null) {
-                    startLevelToUse = originalFrameworkStartLevelValue;
+                    startLevelToUse = upgradeCommitter.getOriginalFrameworkStartLevel();
                 }
                 Logger.info("Installing new bundle from folder '" + bundleLocationString + "' with startLevel "
                         + startLevelToUse);
                 installedBundle = systemBundleContext.installBundle(realBundleLocation.toString());
+                recordPhase(UpgradePhase.INSTALL, bundleData, true, phaseStartNanos);
+                affectedBundles.add(installedBundle);
                 BundleStartLevel bundleStartLevel = installedBundle.adapt(BundleStartLevel.class);
                 bundleStartLevel.setStartLevel(startLevelToUse);
             } catch (BundleException e) {
                 Logger.error("Error during deploying bundle: " + bundleLocationString, e);
+                recordPhase(UpgradePhase.INSTALL, bundleData, false, phaseStartNanos);
+                result.addFailure(bundleLocationString, e);
             }
         }
+        if ((installedBundle != null) && (digest != null)) {
+            bundleDigestStore.put(installedBundle.getLocation(), digest);
+        }
         if (startBundle && installedBundle != null) {
             installedBundlesWithStartFlag.add(installedBundle);
         }
         return installedBundle;
     }
 
-    public synchronized void finish() {
-        if (!stateChanged) {
-            bundleDeployerService.finishOngoingProcess();
-            return;
-        }
-        Logger.info("Calling refresh on OSGi framework. All packages on uninstalled bundles should be re-wired");
-
-        Lock refreshFinishLock = refreshListener.getRefreshFinishLock();
-        AtomicBoolean refreshFinished = refreshListener.getRefreshFinished();
-        Condition refreshFinishCondition = refreshListener.getRefreshFinishCondition();
-        frameworkWiring.refreshBundles(null, new FrameworkListener[] { refreshListener });
-
-        refreshFinishLock.lock();
+    /**
+     * Finishes the process. The bundles that were touched by the process are refreshed and started. If other processes
+     * finish at the same time, their changes are committed together with the changes of this process.
+     *
+     * @return The result of the process.
+     */
+    public synchronized UpgradeResult finish() {
         try {
-            while (!refreshFinished.get()) {
-                refreshFinishCondition.await();
+            if (stateChanged) {
+                upgradeCommitter.commit(this);
             }
-        } catch (InterruptedException e) {
-            Logger.error("Interrupting waiting for framework refresh", e);
+            result.setTotalNanos(System.nanoTime() - creationNanos);
+            Logger.info(result.summarize());
+            Logger.info(bundleDeployerService.getBundleDataCache().summarize());
+            bundleDigestStore.persist();
+            installedBundlesWithStartFlag.clear();
+            affectedBundles.clear();
+            stoppedBundles.clear();
+            uninstallHappened = false;
         } finally {
-            refreshFinishLock.unlock();
-        }
-        frameworkWiring.resolveBundles(null);
-        Collection<Bundle> bundlesToStart = frameworkWiring.getDependencyClosure(installedBundlesWithStartFlag);
-
-        if (currentFrameworkStartLevelValue != originalFrameworkStartLevelValue) {
-            setFrameworkStartLevel(originalFrameworkStartLevelValue);
-        }
-
-        for (Bundle bundle : bundlesToStart) {
-            try {
-                if (bundle.getState() != Bundle.ACTIVE) {
-                    String fragmentHostHeader = bundle.getHeaders().get(Constants.FRAGMENT_HOST);
-                    if (fragmentHostHeader == null) {
-                        bundle.start();
-                    }
-                }
-            } catch (BundleException e) {
-                Logger.error("Error during starting bundle " + bundle.toString(), e);
-            }
+            bundleDeployerService.finishOngoingProcess();
         }
-        installedBundlesWithStartFlag.clear();
-
-        bundleDeployerService.finishOngoingProcess();
+        return result;
     }
 
     private BundleData getBundleData(final File file) {
+        BundleDataCache bundleDataCache = bundleDeployerService.getBundleDataCache();
         File bundleLocation = null;
         if (file.isDirectory()) {
             bundleLocation = new File(file, "target/classes");
@@ -268,7 +418,13 @@ public class UpgradeProcess {
             }
 
             try {
-                BundleData bundleData = BundleUtil.readBundleDataFromManifestFile(bundleLocation, manifestFile);
+                long lastModified = manifestFile.lastModified();
+                long length = manifestFile.length();
+                BundleData bundleData = bundleDataCache.get(manifestFile, lastModified, length, bundleLocation);
+                if (bundleData == null) {
+                    bundleData = BundleUtil.readBundleDataFromManifestFile(bundleLocation, manifestFile);
+                    bundleDataCache.put(manifestFile, lastModified, length, bundleData);
+                }
                 if (bundleData.getSymbolicName() != null && bundleData.getVersion() != null) {
                     return bundleData;
                 } else {
@@ -282,9 +438,18 @@ public class UpgradeProcess {
         } else {
             JarFile jarFile = null;
             try {
-                jarFile = new JarFile(file);
-                Manifest manifest = jarFile.getManifest();
-                BundleData bundleData = BundleUtil.readBundleDataFromManifest(file, manifest);
+                long lastModified = file.lastModified();
+                long length = file.length();
+                BundleData bundleData = bundleDataCache.get(file, lastModified, length, file);
+                if (bundleData == null) {
+                    bundleData = ZipManifestReader.readBundleData(file);
+                    if (bundleData == null) {
+                        jarFile = new JarFile(file);
+                        Manifest manifest = jarFile.getManifest();
+                        bundleData = BundleUtil.readBundleDataFromManifest(file, manifest);
+                    }
+                    bundleDataCache.put(file, lastModified, length, bundleData);
+                }
                 if (bundleData.getSymbolicName() != null && bundleData.getVersion() != null) {
                     return bundleData;
                 } else {
@@ -311,42 +476,95 @@ public class UpgradeProcess {
         return null;
     }
 
-    public void setFrameworkStartLevel(final int startLevel) {
-        Logger.info("Setting framework startlevel to " + startLevel);
-        final AtomicBoolean startLevelReached = new AtomicBoolean(false);
-        final Lock lock = new ReentrantLock();
-        final Condition startLevelReachedCondition = lock.newCondition();
-
-        frameworkStartLevel.setStartLevel(startLevel, new FrameworkListener() {
-
-            @Override
-            public void frameworkEvent(final FrameworkEvent event) {
-                lock.lock();
-                int eventType = event.getType();
-                if ((eventType == FrameworkEvent.STARTLEVEL_CHANGED) || (eventType == FrameworkEvent.ERROR)) {
-                    if (eventType == FrameworkEvent.ERROR) {
-                        Logger.error("Setting framework startlevel to " + startLevel + " finished with error: ",
-                                event.getThrowable());
-                    } else {
-                        Logger.info("Setting framework startlevel to " + startLevel + " finished with success");
-                    }
-                    startLevelReached.set(true);
-                    startLevelReachedCondition.signal();
-                }
-                lock.unlock();
-            }
-        });
-        lock.lock();
+    Set<Bundle> getAffectedBundles() {
+        return affectedBundles;
+    }
+
+    Set<Bundle> getInstalledBundlesWithStartFlag() {
+        return installedBundlesWithStartFlag;
+    }
+
+    UpgradeResult getResult() {
+        return result;
+    }
+
+    Set<Bundle> getStoppedBundles() {
+        return stoppedBundles;
+    }
+
+    boolean isUninstallHappened() {
+        return uninstallHappened;
+    }
+
+    /**
+     * Reads the manifest and calculates the digest of a bundle. The process is not locked during the preparation.
+     *
+     * @return The prepared bundle or null if the location does not contain a bundle.
+     */
+    private PreparedBundle prepareBundle(final URI bundleLocation) {
+        File bundleFile = convertURIToFile(bundleLocation);
+        String bundleLocationString = bundleLocation.toString();
+
+        long phaseStartNanos = System.nanoTime();
+        BundleData bundleData = getBundleData(bundleFile);
+        if (bundleData == null) {
+            recordPhase(UpgradePhase.READ_MANIFEST, null, false, phaseStartNanos);
+            result.addFailure(bundleLocationString, null);
+            return null;
+        }
+        recordPhase(UpgradePhase.READ_MANIFEST, bundleData, true, phaseStartNanos);
+
+        phaseStartNanos = System.nanoTime();
+        String digest = null;
         try {
-            while (!startLevelReached.get()) {
-                startLevelReachedCondition.await();
-            }
-        } catch (InterruptedException e) {
-            Logger.error("Startlevel reaching wait interrupted", e);
-        } finally {
-            lock.unlock();
+            digest = bundleDigestStore.calculateDigest(bundleData.getEvaluatedLocationFile());
+        } catch (IOException e) {
+            Logger.error("Could not calculate the digest of bundle " + bundleLocationString, e);
+        }
+        recordPhase(UpgradePhase.DIGEST, bundleData, digest != null, phaseStartNanos);
+        return new PreparedBundle(bundleLocation, bundleFile, bundleData, digest);
+    }
+
+    private List<PreparedBundle> prepareBundles(final List<BundleDeployment> deployments) {
+        PreparedBundle[] preparedBundles = new PreparedBundle[deployments.size()];
+        if (preparedBundles.length > 0) {
+            bundleDeployerService.getBundleReaderPool().invoke(
+                    new PrepareBundlesTask(deployments, preparedBundles, 0, preparedBundles.length));
+        }
+        return Arrays.asList(preparedBundles);
+    }
+
+    private boolean redefineClasses(final Bundle bundle, final BundleData bundleData) {
+        ClassRedefiner classRedefiner = bundleDeployerService.getClassRedefiner();
+        File locationFile = bundleData.getEvaluatedLocationFile();
+        if ((classRedefiner == null) || !locationFile.isDirectory()
+                || ((bundle.getState() & (Bundle.RESOLVED | Bundle.STARTING | Bundle.ACTIVE)) == 0)) {
+            return false;
         }
-        currentFrameworkStartLevelValue = startLevel;
+        long phaseStartNanos = System.nanoTime();
+        boolean redefined = classRedefiner.redefine(bundle, locationFile);
+        recordPhase(UpgradePhase.REDEFINE, bundleData, redefined, phaseStartNanos);
+        return redefined;
+    }
+
+    private void recordPhase(final UpgradePhase phase, final BundleData bundleData, final boolean successful,
+            final long phaseStartNanos) {
+        String symbolicName = (bundleData != null) ? bundleData.getSymbolicName() : null;
+        String version = (bundleData != null) ? bundleData.getVersion() : null;
+        result.addPhaseEvent(new UpgradePhaseEvent(phase, symbolicName, version, successful, System.nanoTime()
+                - phaseStartNanos));
+    }
+
+    private void markStateChanged() {
+        stateChanged = true;
+        upgradeCommitter.processChanged(this);
+    }
+
+    /**
+     * Sets the listener that is notified about the phases of the process as they finish.
+     */
+    public void setProgressListener(final UpgradeProgressListener progressListener) {
+        result.setProgressListener(progressListener);
     }
 
     /**
@@ -358,20 +576,31 @@ public class UpgradeProcess {
      *            The version of the bundle, optional. In case this parameter is null, the first bundle with the given
      *            symbolic name will be uninstalled.
      */
-    public void uninstallBundle(final String symbolicName, final String version) {
-        Bundle bundle = bundleDeployerService.getExistingBundleBySymbolicName(symbolicName, version, null);
-        if (bundle != null) {
-            stateChanged = true;
-            Logger.info("Uninstalling bundle: " + bundle);
-            BundleStartLevel bundleStartLevel = bundle.adapt(BundleStartLevel.class);
-            if (bundleStartLevel.getStartLevel() < currentFrameworkStartLevelValue) {
-                setFrameworkStartLevel(bundleStartLevel.getStartLevel());
-            }
-            try {
-                bundle.uninstall();
-            } catch (BundleException e) {
-                Logger.error("Error during uninstalling bundle: " + bundle.toString(), e);
+    public synchronized void uninstallBundle(final String symbolicName, final String version) {
+        upgradeCommitter.lock();
+        try {
+            Bundle bundle = bundleDeployerService.getExistingBundleBySymbolicName(symbolicName, version, null);
+            if (bundle != null) {
+                markStateChanged();
+                Logger.info("Uninstalling bundle: " + bundle);
+                upgradeCommitter.stopBeforeChange(bundle, this);
+                affectedBundles.add(bundle);
+                uninstallHappened = true;
+                bundleDigestStore.remove(bundle.getLocation());
+                long phaseStartNanos = System.nanoTime();
+                try {
+                    bundle.uninstall();
+                    result.addPhaseEvent(new UpgradePhaseEvent(UpgradePhase.UNINSTALL, bundle, true, System
+                            .nanoTime() - phaseStartNanos));
+                } catch (BundleException e) {
+                    Logger.error("Error during uninstalling bundle: " + bundle.toString(), e);
+                    result.addPhaseEvent(new UpgradePhaseEvent(UpgradePhase.UNINSTALL, bundle, false, System
+                            .nanoTime() - phaseStartNanos));
+                    result.addFailure(bundle.toString(), e);
+                }
             }
+        } finally {
+            upgradeCommitter.unlock();
         }
     }
 }
@@ -0,0 +1,29 @@
+/**
+ * This file is part of Everit - OSGi Rich Console.
+ *
+ * Everit - OSGi Rich Console is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit - OSGi Rich Console is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit - OSGi Rich Console.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.dev.richconsole.internal.upgrade;
+
+/**
+ * Gets notified about the progress of an {@link UpgradeProcess} while it is running. The listener is called on the
+ * thread that executed the phase, which may be the thread of another process if they are committed together.
+ */
+public interface UpgradeProgressListener {
+
+    /**
+     * Called when a phase of the process finished.
+     */
+    void phaseFinished(UpgradePhaseEvent phaseEvent);
+}
@@ -0,0 +1,134 @@
+/**
+ * This file is part of Everit - OSGi Rich Console.
+ *
+ * Everit - OSGi Rich Console is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit - OSGi Rich Console is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit - OSGi Rich Console.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.dev.richconsole.internal.upgrade;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.everit.osgi.dev.richconsole.internal.Logger;
+import org.osgi.framework.Bundle;
+
+/**
+ * The outcome of one {@link UpgradeProcess}. Even if the process was committed together with other processes, the
+ * result only contains the bundles and errors that belong to the process.
+ */
+public class UpgradeResult {
+
+    private final Map<String, Throwable> failures = new LinkedHashMap<String, Throwable>();
+
+    private final List<UpgradePhaseEvent> phaseEvents = new ArrayList<UpgradePhaseEvent>();
+
+    private volatile UpgradeProgressListener progressListener = null;
+
+    private final List<Bundle> startedBundles = new ArrayList<Bundle>();
+
+    private long totalNanos = 0;
+
+    synchronized void addFailure(final String subject, final Throwable cause) {
+        failures.put(subject, cause);
+    }
+
+    void addPhaseEvent(final UpgradePhaseEvent phaseEvent) {
+        synchronized (this) {
+            phaseEvents.add(phaseEvent);
+        }
+        UpgradeProgressListener listener = progressListener;
+        if (listener != null) {
+            try {
+                listener.phaseFinished(phaseEvent);
+            } catch (RuntimeException e) {
+                Logger.error("Error during notifying upgrade progress listener about " + phaseEvent.toString(), e);
+            }
+        }
+    }
+
+    synchronized void addStartedBundle(final Bundle bundle) {
+        startedBundles.add(bundle);
+    }
+
+    /**
+     * The errors that occurred during the process. The keys are the locations or the descriptions of the bundles that
+     * could not be deployed, uninstalled or started.
+     */
+    public synchronized Map<String, Throwable> getFailures() {
+        return Collections.unmodifiableMap(new LinkedHashMap<String, Throwable>(failures));
+    }
+
+    /**
+     * The total time spent in each phase of the process.
+     */
+    public synchronized Map<UpgradePhase, Long> getNanosByPhase() {
+        Map<UpgradePhase, Long> nanosByPhase = new EnumMap<UpgradePhase, Long>(UpgradePhase.class);
+        for (UpgradePhaseEvent phaseEvent : phaseEvents) {
+            Long nanos = nanosByPhase.get(phaseEvent.getPhase());
+            long sum = (nanos == null) ? 0 : nanos;
+            nanosByPhase.put(phaseEvent.getPhase(), sum + phaseEvent.getDurationNanos());
+        }
+        return nanosByPhase;
+    }
+
+    /**
+     * The measured phases of the process in the order they finished.
+     */
+    public synchronized List<UpgradePhaseEvent> getPhaseEvents() {
+        return Collections.unmodifiableList(new ArrayList<UpgradePhaseEvent>(phaseEvents));
+    }
+
+    public synchronized List<Bundle> getStartedBundles() {
+        return Collections.unmodifiableList(new ArrayList<Bundle>(startedBundles));
+    }
+
+    /**
+     * The time from the creation of the process until it finished, or 0 if the process is not finished yet.
+     */
+    public synchronized long getTotalNanos() {
+        return totalNanos;
+    }
+
+    public synchronized boolean isSuccessful() {
+        return failures.isEmpty();
+    }
+
+    void setProgressListener(final UpgradeProgressListener progressListener) {
+        this.progressListener = progressListener;
+    }
+
+    synchronized void setTotalNanos(final long totalNanos) {
+        this.totalNanos = totalNanos;
+    }
+
+    /**
+     * Creates a one line summary of the process with the total time spent in each phase.
+     */
+    public synchronized String summarize() {
+        Map<UpgradePhase, Long> nanosByPhase = getNanosByPhase();
+        StringBuilder sb = new StringBuilder("Upgrade process finished in ")
+                .append(totalNanos / UpgradePhaseEvent.NANOS_PER_MILLI).append(" ms");
+        for (Entry<UpgradePhase, Long> entry : nanosByPhase.entrySet()) {
+            sb.append("; ").append(entry.getKey()).append(' ')
+                    .append(entry.getValue() / UpgradePhaseEvent.NANOS_PER_MILLI).append(" ms");
+        }
+        sb.append("; started bundles: ").append(startedBundles.size()).append("; failures: ")
+                .append(failures.size());
+        return sb.toString();
+    }
+}
@@ -19,14 +19,14 @@ package org.everit.osgi.dev.richconsole.internal.upgrade;
 import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.lang.instrument.Instrumentation;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
 
+import org.everit.osgi.dev.richconsole.RichConsoleConstants;
 import org.everit.osgi.dev.richconsole.internal.Logger;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
@@ -37,133 +37,234 @@ public class UpgradeServiceImpl implements Closeable {
 
     private class Tracker extends BundleTracker<Bundle> {
 
-        private Map<String, List<Long>> bundleIdsBySymbolicName = new ConcurrentHashMap<String, List<Long>>();
-
         public Tracker(final BundleContext context, final int stateMask) {
             super(context, stateMask, null);
         }
 
         @Override
         public Bundle addingBundle(final Bundle bundle, final BundleEvent event) {
-            String symbolicName = bundle.getSymbolicName();
-            List<Long> bundleIdList = bundleIdsBySymbolicName.get(symbolicName);
-            if (bundleIdList == null) {
-                bundleIdList = new ArrayList<Long>();
-                bundleIdsBySymbolicName.put(symbolicName, bundleIdList);
-            }
-            bundleIdList.add(bundle.getBundleId());
+            indexBundle(bundle);
             return super.addingBundle(bundle, event);
         }
 
-        public List<Long> getBundleIdsBySymbolicName(final String symbolicName) {
-            return bundleIdsBySymbolicName.get(symbolicName);
+        private void indexBundle(final Bundle bundle) {
+            bundleIndex.add(bundle.getBundleId(), bundle.getSymbolicName(), bundle.getVersion().toString(),
+                    bundle.getLocation());
+        }
+
+        @Override
+        public void modifiedBundle(final Bundle bundle, final BundleEvent event, final Bundle object) {
+            if ((event != null) && (event.getType() == BundleEvent.UPDATED)) {
+                indexBundle(bundle);
+            }
         }
 
         @Override
         public void removedBundle(final Bundle bundle, final BundleEvent event, final Bundle object) {
             super.remove(bundle);
-            String symbolicName = bundle.getSymbolicName();
-            List<Long> list = bundleIdsBySymbolicName.get(symbolicName);
-            list.remove(bundle.getBundleId());
-            if (list.size() == 0) {
-                bundleIdsBySymbolicName.remove(symbolicName);
+            bundleIndex.remove(bundle.getBundleId());
+            if ((event != null) && (event.getType() == BundleEvent.UNINSTALLED)) {
+                bundleLocationRemoved(bundle.getLocation());
             }
         }
     }
 
+    private static final String BUNDLE_DIGESTS_FILE_NAME = "bundleDigests.properties";
+
+    private final BundleDataCache bundleDataCache = new BundleDataCache(BundleDataCache.DEFAULT_CAPACITY);
+
+    private final BundleDigestStore bundleDigestStore;
+
+    private final BundleIndex bundleIndex = new BundleIndex();
+
+    /**
+     * Reads the manifests and calculates the digests of the bundles before they are deployed.
+     */
+    private final ForkJoinPool bundleReaderPool = new ForkJoinPool();
+
+    /**
+     * Redefines the classes of the changed directory bundles. Null if the hot redefinition is not enabled or not
+     * available.
+     */
+    private ClassRedefiner classRedefiner = null;
+
     private boolean closed = false;
 
-    private UpgradeProcess ongoingProcess = null;
+    /**
+     * Watches the deployed directory bundles. Null if the watching is not enabled.
+     */
+    private DirectoryBundleWatcher directoryBundleWatcher = null;
+
+    private int ongoingProcessCount = 0;
 
     private final BundleContext systemBundleContext;
 
     private final Tracker tracker;
 
+    private final UpgradeCommitter upgradeCommitter;
+
     public UpgradeServiceImpl(final Bundle consoleBundle) {
         systemBundleContext = consoleBundle.getBundleContext().getBundle(0).getBundleContext();
+        upgradeCommitter = new UpgradeCommitter(systemBundleContext);
+        bundleDigestStore =
+                new BundleDigestStore(consoleBundle.getBundleContext().getDataFile(BUNDLE_DIGESTS_FILE_NAME));
         tracker =
                 new Tracker(consoleBundle.getBundleContext(), Bundle.ACTIVE | Bundle.INSTALLED | Bundle.RESOLVED
                         | Bundle.STARTING | Bundle.STOPPING);
         tracker.open();
 
+        if (Boolean.getBoolean(RichConsoleConstants.SYSPROP_REDEFINE_CLASSES)) {
+            Instrumentation instrumentation = ClassRedefiner.acquireInstrumentation(consoleBundle);
+            if ((instrumentation != null) && instrumentation.isRedefineClassesSupported()) {
+                classRedefiner = new ClassRedefiner(instrumentation, bundleDigestStore);
+            }
+        }
+        if (Boolean.getBoolean(RichConsoleConstants.SYSPROP_WATCH_DIRECTORY_BUNDLES)) {
+            try {
+                directoryBundleWatcher = new DirectoryBundleWatcher(this);
+            } catch (IOException e) {
+                Logger.error("Could not start watching the deployed directory bundles", e);
+            }
+        }
+    }
+
+    /**
+     * Forgets the state that is kept about a bundle location. Called for every uninstalled bundle, even if it was
+     * uninstalled by another agent. The digest of the bundle is dropped, so the content of a bundle that is installed
+     * from the same location later is not regarded as unchanged.
+     */
+    void bundleLocationRemoved(final String bundleLocation) {
+        bundleDigestStore.remove(bundleLocation);
+        bundleDigestStore.persist();
+        if (classRedefiner != null) {
+            classRedefiner.forget(bundleLocation);
+        }
+        if (directoryBundleWatcher != null) {
+            directoryBundleWatcher.unwatch(bundleLocation);
+        }
     }
 
     @Override
     public synchronized void close() throws IOException {
         closed = true;
-        if (ongoingProcess == null) {
+        if (directoryBundleWatcher != null) {
+            directoryBundleWatcher.close();
+        }
+        if (ongoingProcessCount == 0) {
             tracker.close();
+            bundleReaderPool.shutdown();
         }
     }
 
-    public synchronized void deployBundles(final List<File> fileObjects) {
+    public UpgradeResult deployBundles(final List<File> fileObjects) {
+        List<BundleDeployment> deployments = new ArrayList<BundleDeployment>(fileObjects.size());
+        for (File file : fileObjects) {
+            String fileURIString = file.toURI().toString();
+            try {
+                deployments.add(new BundleDeployment(new URI("reference:" + fileURIString), true, null));
+            } catch (URISyntaxException e) {
+                Logger.error("Could not install bundle from file " + file.getAbsolutePath()
+                        + " with location reference:" + fileURIString, e);
+            }
+        }
+
         UpgradeProcess deploymentProcess = newUpgradeProcess();
+        UpgradeResult result;
         try {
-            for (File file : fileObjects) {
-                URI fileURI = file.toURI();
-                String fileURIString = fileURI.toString();
-                URI bundleLocation;
-                try {
-                    bundleLocation = new URI("reference:" + fileURIString);
-                    deploymentProcess.deployBundle(bundleLocation, true, null);
-                } catch (URISyntaxException e) {
-                    Logger.error("Could not install bundle from file " + file.getAbsolutePath()
-                            + " with location reference:" + fileURIString, e);
-                }
-
-            }
+            deploymentProcess.deployBundles(deployments);
         } finally {
-            deploymentProcess.finish();
+            result = deploymentProcess.finish();
         }
+        return result;
+    }
+
+    void directoryBundleDeployed(final String bundleLocation, final URI deployLocation, final File root,
+            final boolean start) {
+        if (classRedefiner != null) {
+            classRedefiner.recordDeployment(bundleLocation, root);
+        }
+        if (directoryBundleWatcher != null) {
+            directoryBundleWatcher.watch(bundleLocation, deployLocation, root, start);
+        }
+    }
+
+    /**
+     * The cache of the manifest data that is shared by the upgrade processes.
+     */
+    BundleDataCache getBundleDataCache() {
+        return bundleDataCache;
+    }
+
+    BundleDigestStore getBundleDigestStore() {
+        return bundleDigestStore;
+    }
+
+    ForkJoinPool getBundleReaderPool() {
+        return bundleReaderPool;
+    }
+
+    ClassRedefiner getClassRedefiner() {
+        return classRedefiner;
     }
 
     synchronized void finishOngoingProcess() {
-        ongoingProcess = null;
-        if (closed) {
+        ongoingProcessCount--;
+        if (closed && (ongoingProcessCount == 0)) {
             tracker.close();
+            bundleReaderPool.shutdown();
         }
     }
 
+    /**
+     * Finds the installed bundle that a deployment replaces. If more bundles are installed with the symbolic name, the
+     * one installed from the location is preferred, then the one with the same version.
+     *
+     * @param symbolicName
+     *            The symbolic name of the deployed bundle.
+     * @param version
+     *            The version of the deployed bundle.
+     * @param bundleLocation
+     *            The location the deployed bundle is installed with, e.g. reference:file:/project/target/classes/ for
+     *            a directory bundle, or null if it is not known.
+     * @return The bundle or null if no bundle is installed with the symbolic name.
+     */
     Bundle getExistingBundleBySymbolicName(final String symbolicName, final String version,
             final URI bundleLocation) {
-        List<Long> existingBundleIds = tracker.getBundleIdsBySymbolicName(symbolicName);
-        Bundle selectedBundle = null;
-        if (existingBundleIds != null) {
-            if (existingBundleIds.size() == 1) {
-                selectedBundle = systemBundleContext.getBundle(existingBundleIds.get(0));
-            }
-            Iterator<Long> iterator = existingBundleIds.iterator();
-            while (iterator.hasNext() && (selectedBundle == null)) {
-                Long existingBundleId = iterator.next();
-                Bundle bundle = systemBundleContext.getBundle(existingBundleId);
-                String existingBundleLocation = bundle.getLocation();
-
-                if (existingBundleLocation.equals(bundleLocation)) {
-                    selectedBundle = bundle;
-                }
+        long[] existingBundleIds = bundleIndex.getBundleIdsBySymbolicName(symbolicName);
+        if (existingBundleIds.length == 0) {
+            return null;
+        }
+        if (existingBundleIds.length == 1) {
+            return systemBundleContext.getBundle(existingBundleIds[0]);
+        }
 
-                if (selectedBundle == null) {
-                    String existingBundleVersion = bundle.getVersion().toString();
-                    if (existingBundleVersion.equals(version)) {
-                        selectedBundle = bundle;
-                    }
+        if (bundleLocation != null) {
+            long bundleIdByLocation = bundleIndex.getBundleIdByLocation(bundleLocation.toString());
+            if (bundleIdByLocation != BundleIndex.NO_BUNDLE_ID) {
+                Bundle bundle = systemBundleContext.getBundle(bundleIdByLocation);
+                if ((bundle != null) && symbolicName.equals(bundle.getSymbolicName())) {
+                    return bundle;
                 }
             }
-            if ((selectedBundle == null) && (existingBundleIds.size() > 0)) {
-                selectedBundle = systemBundleContext.getBundle(existingBundleIds.get(0));
-            }
         }
-        return selectedBundle;
+
+        long[] bundleIdsWithVersion = bundleIndex.getBundleIdsBySymbolicNameAndVersion(symbolicName, version);
+        if (bundleIdsWithVersion.length > 0) {
+            return systemBundleContext.getBundle(bundleIdsWithVersion[0]);
+        }
+        return systemBundleContext.getBundle(existingBundleIds[0]);
     }
 
+    /**
+     * Creates a new upgrade process. More processes can be ongoing at the same time; their modifications on the
+     * framework are serialized and the ones that finish while another one is committing are committed together.
+     */
     public synchronized UpgradeProcess newUpgradeProcess() {
-        if (ongoingProcess != null) {
-            throw new IllegalStateException("There is already an ongoing deployment process");
-        }
         if (closed) {
             throw new IllegalStateException("The deployer service is already closed");
         }
 
-        return new UpgradeProcess(this, systemBundleContext);
+        ongoingProcessCount++;
+        return new UpgradeProcess(this, upgradeCommitter, systemBundleContext);
     }
 }
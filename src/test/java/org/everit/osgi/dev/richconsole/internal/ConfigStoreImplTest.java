@@ -0,0 +1,253 @@
+/**
+ * This file is part of Everit - OSGi Rich Console.
+ *
+ * Everit - OSGi Rich Console is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit - OSGi Rich Console is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit - OSGi Rich Console.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.dev.richconsole.internal;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.everit.osgi.dev.richconsole.ConfigPropertyChangeListener;
+import org.everit.osgi.dev.richconsole.ConfigStore;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Runs the config store on a settings file in a temporary directory and checks when the file is written and which
+ * changes the listeners are notified about.
+ */
+public class ConfigStoreImplTest {
+
+    /**
+     * Records the changes it is notified about as "key=value" strings.
+     */
+    private static class RecordingListener implements ConfigPropertyChangeListener {
+
+        private final List<String> changes = new ArrayList<String>();
+
+        /**
+         * Waits until the listener is notified about the specified number of changes.
+         *
+         * @return The changes the listener was notified about so far.
+         */
+        public synchronized List<String> awaitChanges(final int changeCount) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+            while (changes.size() < changeCount) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    Assert.fail("Expected " + changeCount + " change(s) but got " + changes);
+                }
+                wait(remaining);
+            }
+            return new ArrayList<String>(changes);
+        }
+
+        @Override
+        public synchronized void propertyChanged(final String key, final String value) {
+            changes.add(key + "=" + value);
+            notifyAll();
+        }
+    }
+
+    /**
+     * More than the quiet period of the settings file watcher, so it has reloaded the file after a write.
+     */
+    private static final long SETTLE_MILLIS = 1000;
+
+    private static final long TIMEOUT_MILLIS = 10000;
+
+    private ConfigStoreImpl configStore;
+
+    private File settingsFile;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private static int countReplacements(final WatchService watchService, final Path fileName) {
+        int replacements = 0;
+        WatchKey key = watchService.poll();
+        while (key != null) {
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if ((event.kind() == StandardWatchEventKinds.ENTRY_CREATE) && fileName.equals(event.context())) {
+                    replacements += event.count();
+                }
+            }
+            key.reset();
+            key = watchService.poll();
+        }
+        return replacements;
+    }
+
+    private ConfigStoreImpl newConfigStore(final long persistDelayMillis) {
+        System.setProperty(ConfigStore.SYSPROP_SETTINGS_PERSIST_DELAY, String.valueOf(persistDelayMillis));
+        configStore = new ConfigStoreImpl(null);
+        return configStore;
+    }
+
+    private Properties readSettingsFile() throws IOException {
+        Properties properties = new Properties();
+        InputStream in = new FileInputStream(settingsFile);
+        try {
+            properties.load(in);
+        } finally {
+            in.close();
+        }
+        return properties;
+    }
+
+    @Before
+    public void setUp() {
+        settingsFile = new File(temporaryFolder.getRoot(), "settings.properties");
+        System.setProperty(ConfigStore.SYSPROP_SETTINGS_FILE_PATH, settingsFile.getAbsolutePath());
+    }
+
+    @After
+    public void tearDown() {
+        if (configStore != null) {
+            configStore.close();
+        }
+        System.clearProperty(ConfigStore.SYSPROP_SETTINGS_FILE_PATH);
+        System.clearProperty(ConfigStore.SYSPROP_SETTINGS_PERSIST_DELAY);
+    }
+
+    @Test
+    public void testBurstOfChangesIsWrittenOnce() throws Exception {
+        ConfigStoreImpl store = newConfigStore(500);
+        WatchService watchService = FileSystems.getDefault().newWatchService();
+        try {
+            temporaryFolder.getRoot().toPath().register(watchService, StandardWatchEventKinds.ENTRY_CREATE);
+            for (int i = 0; i < 100; i++) {
+                Map<String, String> changes = new HashMap<String, String>();
+                changes.put("key" + (i % 10), "value" + i);
+                store.setProperties(changes);
+            }
+            Assert.assertTrue(readSettingsFile().isEmpty());
+
+            Thread.sleep(SETTLE_MILLIS);
+            Properties properties = readSettingsFile();
+            Assert.assertEquals(10, properties.size());
+            Assert.assertEquals("value99", properties.getProperty("key9"));
+            Assert.assertEquals(1, countReplacements(watchService, settingsFile.toPath().getFileName()));
+        } finally {
+            watchService.close();
+        }
+    }
+
+    @Test
+    public void testCloseWritesPendingChanges() throws Exception {
+        ConfigStoreImpl store = newConfigStore(TimeUnit.MINUTES.toMillis(1));
+        store.setProperty("key", "value");
+        Assert.assertNull(readSettingsFile().getProperty("key"));
+
+        store.close();
+        Assert.assertEquals("value", readSettingsFile().getProperty("key"));
+    }
+
+    @Test
+    public void testExternalEditNotifiesChangedKeysOnly() throws Exception {
+        ConfigStoreImpl store = newConfigStore(0);
+        store.setProperty("unchanged", "1");
+        store.setProperty("changed", "2");
+        store.setProperty("removed", "3");
+        Thread.sleep(SETTLE_MILLIS);
+        RecordingListener listener = new RecordingListener();
+        store.addPropertyChangeListener(listener);
+
+        Properties properties = new Properties();
+        properties.setProperty("unchanged", "1");
+        properties.setProperty("changed", "20");
+        properties.setProperty("added", "4");
+        OutputStream out = new FileOutputStream(settingsFile);
+        try {
+            properties.store(out, null);
+        } finally {
+            out.close();
+        }
+
+        List<String> changes = listener.awaitChanges(3);
+        Assert.assertTrue(changes.containsAll(Arrays.asList("changed=20", "removed=null", "added=4")));
+        Thread.sleep(SETTLE_MILLIS);
+        Assert.assertEquals(3, listener.awaitChanges(0).size());
+        Assert.assertEquals("20", store.getProperty("changed"));
+        Assert.assertNull(store.getProperty("removed"));
+    }
+
+    @Test
+    public void testListenersGetLastValueOfKey() throws Exception {
+        ConfigStoreImpl store = newConfigStore(0);
+        final CountDownLatch notifierBlocked = new CountDownLatch(1);
+        final CountDownLatch releaseNotifier = new CountDownLatch(1);
+        store.addPropertyChangeListener("block", new ConfigPropertyChangeListener() {
+
+            @Override
+            public void propertyChanged(final String key, final String value) {
+                notifierBlocked.countDown();
+                try {
+                    releaseNotifier.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, false);
+        RecordingListener listener = new RecordingListener();
+        store.addPropertyChangeListener("key", listener, false);
+
+        store.setProperty("block", "1");
+        Assert.assertTrue(notifierBlocked.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        for (int i = 1; i <= 3; i++) {
+            store.setProperty("key", "value" + i);
+        }
+        releaseNotifier.countDown();
+
+        Assert.assertEquals(Arrays.asList("key=value3"), listener.awaitChanges(1));
+        Thread.sleep(SETTLE_MILLIS);
+        Assert.assertEquals(1, listener.awaitChanges(0).size());
+    }
+
+    @Test
+    public void testOwnWriteDoesNotNotify() throws Exception {
+        ConfigStoreImpl store = newConfigStore(0);
+        RecordingListener listener = new RecordingListener();
+        store.addPropertyChangeListener(listener);
+
+        store.setProperty("key", "value");
+        Assert.assertEquals("value", readSettingsFile().getProperty("key"));
+
+        Thread.sleep(SETTLE_MILLIS);
+        Assert.assertEquals(Arrays.asList("key=value"), listener.awaitChanges(1));
+    }
+}
@@ -0,0 +1,254 @@
+/**
+ * This file is part of Everit - OSGi Rich Console.
+ *
+ * Everit - OSGi Rich Console is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit - OSGi Rich Console is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit - OSGi Rich Console.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.dev.richconsole.internal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.jar.Attributes;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Writes jar files with {@link JarOutputStream} and checks that {@link ZipManifestReader} reads the same symbolic name
+ * and version from them as {@link java.util.jar.JarFile} or falls back when the format is not supported.
+ */
+public class ZipManifestReaderTest {
+
+    private static final int CENTRAL_DIRECTORY_OFFSET_POSITION = 16;
+
+    private static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+
+    private static final String MANIFEST_NAME = "META-INF/MANIFEST.MF";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int ZIP64_MAGIC_VALUE = 0xFFFFFFFF;
+
+    private static int findEndOfCentralDirectory(final ByteBuffer zipContent) {
+        for (int position = zipContent.limit() - 22; position >= 0; position--) {
+            if (zipContent.getInt(position) == END_OF_CENTRAL_DIRECTORY_SIGNATURE) {
+                return position;
+            }
+        }
+        throw new IllegalArgumentException("Not a zip file");
+    }
+
+    private static Manifest newBundleManifest(final String symbolicName, final String version) {
+        Manifest manifest = new Manifest();
+        Attributes attributes = manifest.getMainAttributes();
+        attributes.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        attributes.putValue("Bundle-ManifestVersion", "2");
+        attributes.putValue("Bundle-SymbolicName", symbolicName);
+        attributes.putValue("Bundle-Version", version);
+        return manifest;
+    }
+
+    private static byte[] toBytes(final Manifest manifest) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        manifest.write(out);
+        return out.toByteArray();
+    }
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private void assertBundleData(final File jarFile, final String symbolicName, final String version)
+            throws IOException {
+        BundleData bundleData = ZipManifestReader.readBundleData(jarFile);
+        Assert.assertNotNull(bundleData);
+        Assert.assertEquals(jarFile, bundleData.getEvaluatedLocationFile());
+        Assert.assertEquals(symbolicName, bundleData.getSymbolicName());
+        Assert.assertEquals(version, bundleData.getVersion());
+    }
+
+    /**
+     * Changes the bytes of an existing jar file.
+     */
+    private void patchJar(final File jarFile, final int position, final int value) throws IOException {
+        ByteBuffer content = ByteBuffer.wrap(Files.readAllBytes(jarFile.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+        content.putInt(position, value);
+        Files.write(jarFile.toPath(), content.array());
+    }
+
+    @Test
+    public void testArchiveComment() throws IOException {
+        File jarFile = temporaryFolder.newFile("comment.jar");
+        JarOutputStream out = new JarOutputStream(new FileOutputStream(jarFile),
+                newBundleManifest("test.comment", "1.0.0"));
+        try {
+            StringBuilder comment = new StringBuilder();
+            while (comment.length() < 1000) {
+                comment.append("An archive comment after the central directory. ");
+            }
+            out.setComment(comment.toString());
+        } finally {
+            out.close();
+        }
+        assertBundleData(jarFile, "test.comment", "1.0.0");
+    }
+
+    @Test
+    public void testContinuationLines() throws IOException {
+        // The first character after the 50 bytes is split between the first and the second line
+        String symbolicName = "test.continuation.with.a.multi.byte.character.at.x"
+                + "\u00e1rv\u00edzt\u0171r\u0151.t\u00fck\u00f6rf\u00far\u00f3g\u00e9p"
+                + ".and.more.text.so.that.the.name.needs.a.third.line";
+        String manifest = "Manifest-Version: 1.0\n"
+                + "Bundle-SymbolicName: " + symbolicName + ";singleton:=true\n"
+                + "Bundle-Version: 1.0.0\n\n";
+        File jarFile = writeJar("continuation.jar", wrap72(manifest.getBytes(UTF8), "\n"), ZipEntry.DEFLATED);
+        assertBundleData(jarFile, symbolicName, "1.0.0");
+    }
+
+    @Test
+    public void testCrlfLineEndings() throws IOException {
+        String manifest = "Manifest-Version: 1.0\r\n"
+                + "Bundle-SymbolicName: test.crlf.with.a.symbolic.name.that.is.split.into.continuation.lines\r\n"
+                + "bundle-version: 2.1.0\r\n\r\n";
+        File jarFile = writeJar("crlf.jar", wrap72(manifest.getBytes(UTF8), "\r\n"), ZipEntry.STORED);
+        assertBundleData(jarFile, "test.crlf.with.a.symbolic.name.that.is.split.into.continuation.lines", "2.1.0");
+    }
+
+    @Test
+    public void testDeflatedManifest() throws IOException {
+        File jarFile = writeJar("deflated.jar", toBytes(newBundleManifest("test.deflated", "1.2.3")),
+                ZipEntry.DEFLATED);
+        assertBundleData(jarFile, "test.deflated", "1.2.3");
+    }
+
+    @Test
+    public void testHeadersInSecondSectionIgnored() throws IOException {
+        String manifest = "Manifest-Version: 1.0\n\nName: test/\nBundle-SymbolicName: test.section\n\n";
+        File jarFile = writeJar("section.jar", manifest.getBytes(UTF8), ZipEntry.DEFLATED);
+        assertBundleData(jarFile, null, null);
+    }
+
+    @Test(expected = ZipException.class)
+    public void testNotZipFile() throws IOException {
+        File file = temporaryFolder.newFile("notzip.jar");
+        Files.write(file.toPath(), "This is not a zip file, but it is long enough".getBytes(UTF8));
+        ZipManifestReader.readBundleData(file);
+    }
+
+    @Test
+    public void testStoredManifest() throws IOException {
+        File jarFile = writeJar("stored.jar", toBytes(newBundleManifest("test.stored;singleton:=true", "1.0.0")),
+                ZipEntry.STORED);
+        assertBundleData(jarFile, "test.stored", "1.0.0");
+    }
+
+    @Test
+    public void testWithoutManifest() throws IOException {
+        File jarFile = writeJar("nomanifest.jar", null, ZipEntry.DEFLATED);
+        assertBundleData(jarFile, null, null);
+    }
+
+    @Test
+    public void testZip64CentralDirectoryFallsBack() throws IOException {
+        File jarFile = writeJar("zip64.jar", toBytes(newBundleManifest("test.zip64", "1.0.0")), ZipEntry.DEFLATED);
+        ByteBuffer content = ByteBuffer.wrap(Files.readAllBytes(jarFile.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+        patchJar(jarFile, findEndOfCentralDirectory(content) + CENTRAL_DIRECTORY_OFFSET_POSITION, ZIP64_MAGIC_VALUE);
+        Assert.assertNull(ZipManifestReader.readBundleData(jarFile));
+    }
+
+    @Test
+    public void testZip64ManifestEntryFallsBack() throws IOException {
+        File jarFile = writeJar("zip64entry.jar", toBytes(newBundleManifest("test.zip64", "1.0.0")),
+                ZipEntry.DEFLATED);
+        ByteBuffer content = ByteBuffer.wrap(Files.readAllBytes(jarFile.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+        int centralDirectoryOffset = content.getInt(findEndOfCentralDirectory(content)
+                + CENTRAL_DIRECTORY_OFFSET_POSITION);
+        // The manifest is the first entry, its compressed size is at offset 20 of its central directory header
+        patchJar(jarFile, centralDirectoryOffset + 20, ZIP64_MAGIC_VALUE);
+        Assert.assertNull(ZipManifestReader.readBundleData(jarFile));
+    }
+
+    /**
+     * Splits the lines of a manifest into lines of at most 72 bytes as the jar specification requires. The lines are
+     * split at byte boundaries, so multi-byte characters may be split between two lines.
+     */
+    private byte[] wrap72(final byte[] manifest, final String lineSeparator) {
+        byte[] separator = lineSeparator.getBytes(UTF8);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int lineLength = 0;
+        for (int i = 0; i < manifest.length; i++) {
+            byte b = manifest[i];
+            if ((b == '\r') || (b == '\n')) {
+                out.write(b);
+                lineLength = 0;
+                continue;
+            }
+            if (lineLength == 72) {
+                out.write(separator, 0, separator.length);
+                out.write(' ');
+                lineLength = 1;
+            }
+            out.write(b);
+            lineLength++;
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Writes a jar file with the manifest as the first entry and a class file entry.
+     *
+     * @param manifest
+     *            The content of the manifest or null if the jar should not have a manifest.
+     * @param method
+     *            The compression method of the manifest entry.
+     */
+    private File writeJar(final String fileName, final byte[] manifest, final int method) throws IOException {
+        File jarFile = temporaryFolder.newFile(fileName);
+        JarOutputStream out = new JarOutputStream(new FileOutputStream(jarFile));
+        try {
+            if (manifest != null) {
+                ZipEntry manifestEntry = new ZipEntry(MANIFEST_NAME);
+                manifestEntry.setMethod(method);
+                if (method == ZipEntry.STORED) {
+                    CRC32 crc = new CRC32();
+                    crc.update(manifest);
+                    manifestEntry.setSize(manifest.length);
+                    manifestEntry.setCompressedSize(manifest.length);
+                    manifestEntry.setCrc(crc.getValue());
+                }
+                out.putNextEntry(manifestEntry);
+                out.write(manifest);
+                out.closeEntry();
+            }
+            out.putNextEntry(new ZipEntry("test/Test.class"));
+            out.write(new byte[] { (byte) 0xCA, (byte) 0xFE, (byte) 0xBA, (byte) 0xBE });
+            out.closeEntry();
+        } finally {
+            out.close();
+        }
+        return jarFile;
+    }
+}
@@ -0,0 +1,109 @@
+/**
+ * This file is part of Everit - OSGi Rich Console.
+ *
+ * Everit - OSGi Rich Console is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit - OSGi Rich Console is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit - OSGi Rich Console.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.dev.richconsole.internal.upgrade;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.logging.Level;
+
+import org.everit.osgi.dev.richconsole.internal.Logger;
+import org.osgi.framework.BundleException;
+import org.osgi.framework.Constants;
+import org.osgi.framework.launch.Framework;
+import org.osgi.framework.launch.FrameworkFactory;
+
+/**
+ * An upgrade service that runs on an OSGi framework embedded in the process, with the storage of the framework in a
+ * temporary directory. The framework implementation is looked up with {@link ServiceLoader}, so any framework on the
+ * classpath can be used. The tests and the benchmarks share it; the benchmarks get it from the test jar of the bundle.
+ */
+public class EmbeddedUpgradeService {
+
+    private static final long STOP_TIMEOUT_MILLIS = 30000;
+
+    private static void deleteRecursively(final File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    private final Framework framework;
+
+    private final File tempDirectory;
+
+    private final UpgradeServiceImpl upgradeService;
+
+    /**
+     * Creates the temporary directory, starts the framework and the upgrade service. Only the warnings and errors of
+     * the upgrade service are logged.
+     */
+    public EmbeddedUpgradeService() throws IOException, BundleException {
+        java.util.logging.Logger.getLogger(Logger.class.getName()).setLevel(Level.WARNING);
+
+        tempDirectory = File.createTempFile("richconsole", "");
+        tempDirectory.delete();
+        tempDirectory.mkdirs();
+
+        Iterator<FrameworkFactory> factories = ServiceLoader.load(FrameworkFactory.class).iterator();
+        if (!factories.hasNext()) {
+            throw new IllegalStateException("No OSGi framework implementation found on the classpath");
+        }
+        Map<String, String> configuration = new HashMap<String, String>();
+        configuration.put(Constants.FRAMEWORK_STORAGE, new File(tempDirectory, "storage").getAbsolutePath());
+        configuration.put(Constants.FRAMEWORK_STORAGE_CLEAN, Constants.FRAMEWORK_STORAGE_CLEAN_ONFIRSTINIT);
+        framework = factories.next().newFramework(configuration);
+        framework.start();
+        upgradeService = new UpgradeServiceImpl(framework);
+    }
+
+    public Framework getFramework() {
+        return framework;
+    }
+
+    /**
+     * The temporary directory that is deleted when the service is stopped. The storage of the framework is in its
+     * storage subdirectory.
+     */
+    public File getTempDirectory() {
+        return tempDirectory;
+    }
+
+    public UpgradeServiceImpl getUpgradeService() {
+        return upgradeService;
+    }
+
+    /**
+     * Closes the upgrade service, stops the framework and deletes the temporary directory.
+     */
+    public void stop() throws IOException, BundleException, InterruptedException {
+        try {
+            upgradeService.close();
+            framework.stop();
+            framework.waitForStop(STOP_TIMEOUT_MILLIS);
+        } finally {
+            deleteRecursively(tempDirectory);
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/**
+ * This file is part of Everit - OSGi Rich Console.
+ *
+ * Everit - OSGi Rich Console is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit - OSGi Rich Console is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit - OSGi Rich Console.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.dev.richconsole.internal.upgrade;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.Charset;
+import java.util.jar.Attributes;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Constants;
+import org.osgi.framework.startlevel.BundleStartLevel;
+
+/**
+ * Redeploys bundles in an embedded framework and checks the state they are left in after the commit.
+ */
+public class UpgradeProcessTest {
+
+    private static final String CONSUMER_SYMBOLIC_NAME = "test.consumer";
+
+    private static final String PROVIDER_PACKAGE = "test.provider";
+
+    private static final String PROVIDER_SYMBOLIC_NAME = "test.provider";
+
+    private EmbeddedUpgradeService embeddedUpgradeService;
+
+    private Bundle deploy(final File bundleFile, final boolean start) throws URISyntaxException {
+        UpgradeProcess process = embeddedUpgradeService.getUpgradeService().newUpgradeProcess();
+        try {
+            return process.deployBundle(new URI("reference:" + bundleFile.toURI().toString()), start, null);
+        } finally {
+            process.finish();
+        }
+    }
+
+    /**
+     * Deploys a provider and a consumer bundle that imports the package of the provider with the start flag.
+     *
+     * @return The provider and the consumer bundle.
+     */
+    private Bundle[] deployProviderAndConsumer() throws IOException, URISyntaxException {
+        File providerFile = writeBundle(PROVIDER_SYMBOLIC_NAME, 1, Constants.EXPORT_PACKAGE);
+        File consumerFile = writeBundle(CONSUMER_SYMBOLIC_NAME, 1, Constants.IMPORT_PACKAGE);
+        Bundle providerBundle = deploy(providerFile, true);
+        Bundle consumerBundle = deploy(consumerFile, true);
+        Assert.assertEquals(Bundle.ACTIVE, providerBundle.getState());
+        Assert.assertEquals(Bundle.ACTIVE, consumerBundle.getState());
+        return new Bundle[] { providerBundle, consumerBundle };
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        embeddedUpgradeService = new EmbeddedUpgradeService();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        embeddedUpgradeService.stop();
+    }
+
+    @Test
+    public void testRedeployWithoutStartKeepsBundleStopped() throws Exception {
+        Bundle[] bundles = deployProviderAndConsumer();
+
+        File providerFile = writeBundle(PROVIDER_SYMBOLIC_NAME, 2, Constants.EXPORT_PACKAGE);
+        Bundle redeployedBundle = deploy(providerFile, false);
+
+        Assert.assertEquals(bundles[0].getBundleId(), redeployedBundle.getBundleId());
+        Assert.assertEquals(Bundle.RESOLVED, redeployedBundle.getState());
+        Assert.assertFalse(redeployedBundle.adapt(BundleStartLevel.class).isPersistentlyStarted());
+        Assert.assertEquals(Bundle.ACTIVE, bundles[1].getState());
+    }
+
+    @Test
+    public void testRedeployWithStartRestartsBundle() throws Exception {
+        Bundle[] bundles = deployProviderAndConsumer();
+
+        File providerFile = writeBundle(PROVIDER_SYMBOLIC_NAME, 2, Constants.EXPORT_PACKAGE);
+        Bundle redeployedBundle = deploy(providerFile, true);
+
+        Assert.assertEquals(bundles[0].getBundleId(), redeployedBundle.getBundleId());
+        Assert.assertEquals(Bundle.ACTIVE, redeployedBundle.getState());
+        Assert.assertEquals(Bundle.ACTIVE, bundles[1].getState());
+    }
+
+    /**
+     * Writes a bundle jar that exports or imports the package of the provider. The content of the jar depends on the
+     * revision, so a new revision is deployed as a changed bundle.
+     */
+    private File writeBundle(final String symbolicName, final int revision, final String packageHeader)
+            throws IOException {
+        Manifest manifest = new Manifest();
+        Attributes attributes = manifest.getMainAttributes();
+        attributes.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        attributes.putValue(Constants.BUNDLE_MANIFESTVERSION, "2");
+        attributes.putValue(Constants.BUNDLE_SYMBOLICNAME, symbolicName);
+        attributes.putValue(Constants.BUNDLE_VERSION, "1.0.0");
+        attributes.putValue(packageHeader, PROVIDER_PACKAGE);
+
+        File bundleFile = new File(embeddedUpgradeService.getTempDirectory(), symbolicName + ".jar");
+        long previousLastModified = bundleFile.lastModified();
+        JarOutputStream out = new JarOutputStream(new FileOutputStream(bundleFile), manifest);
+        try {
+            out.putNextEntry(new ZipEntry("revision.txt"));
+            out.write(String.valueOf(revision).getBytes(Charset.forName("UTF-8")));
+            out.closeEntry();
+        } finally {
+            out.close();
+        }
+        if (previousLastModified > 0) {
+            // Make sure that the change is visible even on file systems with coarse timestamps
+            bundleFile.setLastModified(previousLastModified + 2000);
+        }
+        return bundleFile;
+    }
+}